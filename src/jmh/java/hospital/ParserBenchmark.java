@@ -0,0 +1,105 @@
+package hospital;
+
+import hospital.HospitalAppointmentSystem.Appointment;
+import hospital.HospitalAppointmentSystem.AppointmentStatus;
+import hospital.HospitalAppointmentSystem.Patient;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares FieldReader-based fromFileString with the previous String.split +
+ * chained String.replace implementation. One operation parses all 'rows'
+ * lines; every tenth patient name carries escapes.
+ * Run: gradle jmh -PjmhIncludes=ParserBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+    @Param({"1000", "100000", "1000000"})
+    int rows;
+
+    private String[] patients;
+    private String[] appointments;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random rnd = new Random(42);
+        patients = new String[rows];
+        appointments = new String[rows];
+        for (int i = 0; i < rows; i++) {
+            patients[i] = new Patient(i + 1, "Patient " + i + (i % 10 == 0 ? " | \\p" : ""),
+                    rnd.nextInt(90), i % 2 == 0 ? "F" : "M", "98" + (10000000 + rnd.nextInt(89999999)))
+                    .toFileString();
+            int start = 8 * 60 + 15 * rnd.nextInt(32);
+            appointments[i] = new Appointment(i + 1, rnd.nextInt(rows) + 1, rnd.nextInt(200) + 1,
+                    20000 + rnd.nextInt(700), start, start + 15, AppointmentStatus.BOOKED).toFileString();
+        }
+    }
+
+    @Benchmark
+    public long patientSplitReplace() {
+        long h = 0;
+        for (String line : patients) h += legacyPatient(line).getId();
+        return h;
+    }
+
+    @Benchmark
+    public long patientFieldReader() {
+        long h = 0;
+        for (String line : patients) h += Patient.fromFileString(line).getId();
+        return h;
+    }
+
+    @Benchmark
+    public long appointmentSplitReplace() {
+        long h = 0;
+        for (String line : appointments) h += legacyAppointment(line).getId();
+        return h;
+    }
+
+    @Benchmark
+    public long appointmentFieldReader() {
+        long h = 0;
+        for (String line : appointments) h += Appointment.fromFileString(line).getId();
+        return h;
+    }
+
+    private static Patient legacyPatient(String line) {
+        String[] parts = line.split("\\|", -1);
+        return new Patient(Integer.parseInt(parts[0]), legacyUnescape(parts[1]),
+                Integer.parseInt(parts[2]), legacyUnescape(parts[3]), legacyUnescape(parts[4]));
+    }
+
+    private static Appointment legacyAppointment(String line) {
+        String[] parts = line.split("\\|", -1);
+        int slot = Appointment.parseTimeSlot(legacyUnescape(parts[4]));
+        return new Appointment(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]),
+                Integer.parseInt(parts[2]), Appointment.parseDate(legacyUnescape(parts[3])),
+                slot >>> 16, slot & 0xFFFF, Appointment.parseStatus(legacyUnescape(parts[5])));
+    }
+
+    private static String legacyUnescape(String s) {
+        return s.replace("\\r", "\r")
+                .replace("\\n", "\n")
+                .replace("\\p", "|")
+                .replace("\\\\", "\\");
+    }
+}
@@ -0,0 +1,238 @@
+package hospital;
+
+import hospital.HospitalAppointmentSystem.Appointment;
+import hospital.HospitalAppointmentSystem.AppointmentQuery;
+import hospital.HospitalAppointmentSystem.AppointmentRepository;
+import hospital.HospitalAppointmentSystem.AppointmentService;
+import hospital.HospitalAppointmentSystem.AppointmentStatus;
+import hospital.HospitalAppointmentSystem.ChangeType;
+import hospital.HospitalAppointmentSystem.DataLock;
+import hospital.HospitalAppointmentSystem.Doctor;
+import hospital.HospitalAppointmentSystem.DoctorRepository;
+import hospital.HospitalAppointmentSystem.EventBus;
+import hospital.HospitalAppointmentSystem.Patient;
+import hospital.HospitalAppointmentSystem.PatientRepository;
+import hospital.HospitalAppointmentSystem.ReportService;
+import hospital.HospitalAppointmentSystem.WorkingHours;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Load, lookup, conflict check, book, cancel and list against generated data
+ * files of 'rows' patients and 'rows' appointments (doctors get rows / 1000,
+ * at least 10). Each benchmark forks a JVM with its own copy of the files, so
+ * the rows a write benchmark adds do not leak into the next one. Storage
+ * flags such as -Dhospital.storage=journal go in -jvmArgsAppend.
+ * Run: gradle jmh -PjmhIncludes=RepositoryBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RepositoryBenchmark {
+    @Param({"1000", "100000", "1000000"})
+    int rows;
+
+    private Path dir;
+    private DataLock lock;
+    private String patientFile;
+    private String doctorFile;
+    private String appointmentFile;
+    private int doctors;
+    private PatientRepository patients;
+    private DoctorRepository doctorRepository;
+    private AppointmentRepository appointments;
+    private EventBus events;
+    private AppointmentService service;
+    private ReportService reports;
+    private Appointment sample;
+    private final Random rnd = new Random(7);
+    // Each book() lands on a fresh day, so it never conflicts.
+    private int nextFreeDay = 30000;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        doctors = Math.max(10, rows / 1000);
+        dir = Files.createTempDirectory("hospital-bench");
+        lock = DataLock.acquire(dir);
+        patientFile = lock.resolve("patients.txt");
+        doctorFile = lock.resolve("doctors.txt");
+        appointmentFile = lock.resolve("appointments.txt");
+        generate();
+        patients = new PatientRepository(patientFile);
+        doctorRepository = new DoctorRepository(doctorFile);
+        appointments = new AppointmentRepository(appointmentFile);
+        events = EventBus.open(lock);
+        service = new AppointmentService(appointments, patients, doctorRepository, events);
+        reports = new ReportService(appointments, doctorRepository);
+        sample = appointments.findById(1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        events.close();
+        lock.close();
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path f : (Iterable<Path>) files::iterator) Files.delete(f);
+        }
+        Files.delete(dir);
+    }
+
+    /** A freshly booked appointment for each cancel() call, booked outside the measured time. */
+    @State(Scope.Thread)
+    public static class Booked {
+        int appointmentId;
+
+        @Setup(Level.Invocation)
+        public void book(RepositoryBenchmark bench) {
+            appointmentId = bench.book().getId();
+        }
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int load() {
+        PatientRepository pr = new PatientRepository(patientFile);
+        DoctorRepository dr = new DoctorRepository(doctorFile);
+        AppointmentRepository ar = new AppointmentRepository(appointmentFile);
+        return pr.getNextId() + dr.getNextId() + ar.getNextId();
+    }
+
+    @Benchmark
+    public int findById() {
+        int id = rnd.nextInt(rows) + 1;
+        return patients.findById(id).getId() + appointments.findById(id).getDoctorId();
+    }
+
+    @Benchmark
+    public Appointment conflict() {
+        int start = 8 * 60 + 15 * rnd.nextInt(40);
+        return appointments.findConflict(rnd.nextInt(doctors) + 1, 20000 + rnd.nextInt(365), start, start + 15);
+    }
+
+    @Benchmark
+    public Appointment book() {
+        return service.book(rnd.nextInt(rows) + 1, rnd.nextInt(doctors) + 1, nextFreeDay++, 600, 615);
+    }
+
+    @Benchmark
+    public Appointment cancel(Booked booked) {
+        return service.cancel(booked.appointmentId);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void list() {
+        service.listAppointments(new AppointmentQuery().limit(1000), Writer.nullWriter());
+    }
+
+    @Benchmark
+    public int historyAndAgenda() {
+        return appointments.findByPatient(rnd.nextInt(rows) + 1).size()
+                + appointments.findByDoctorDay(rnd.nextInt(doctors) + 1, 20000 + rnd.nextInt(365)).size();
+    }
+
+    @Benchmark
+    public int patientByPhone() {
+        return patients.findByPhone(patients.findById(rnd.nextInt(rows) + 1).getPhone()).size();
+    }
+
+    @Benchmark
+    public int patientByNamePrefix() {
+        return patients.findByNamePrefix("patient " + (rnd.nextInt(rows) + 1), 10).size();
+    }
+
+    // The generated days are in the past, so this drives the per-day step of the search directly.
+    @Benchmark
+    public int freeSlots() {
+        int doctorId = rnd.nextInt(doctors) + 1;
+        int from = 20000 + rnd.nextInt(365);
+        int found = 0;
+        for (int d = from; d < from + AppointmentService.FREE_SLOT_SEARCH_DAYS; d++) {
+            found += appointments.freeSlots(doctorId, d, WorkingHours.DEFAULT, 0, 16).length;
+        }
+        return found;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int cancellationsByDate() {
+        return reports.cancellationsByDate(Integer.MIN_VALUE, Integer.MAX_VALUE).size();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int topSpecializations() {
+        return reports.topSpecializations(Integer.MIN_VALUE, Integer.MAX_VALUE, 10).size();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int utilization() {
+        return reports.utilization(20000, 20029).size();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long monthlyDashboard() {
+        return reports.monthlyDashboard(YearMonth.from(LocalDate.ofEpochDay(20000))).appointments;
+    }
+
+    @Benchmark
+    public void publish() {
+        events.publish(ChangeType.APPOINTMENT_BOOKED, sample);
+    }
+
+    private void generate() throws IOException {
+        Random rnd = new Random(42);
+        try (PrintWriter pw = new PrintWriter(Files.newBufferedWriter(Path.of(patientFile), StandardCharsets.UTF_8))) {
+            for (int i = 1; i <= rows; i++) {
+                pw.println(new Patient(i, "Patient " + i, rnd.nextInt(90), i % 2 == 0 ? "F" : "M",
+                        "98" + (10000000 + rnd.nextInt(89999999))).toFileString());
+            }
+        }
+        try (PrintWriter pw = new PrintWriter(Files.newBufferedWriter(Path.of(doctorFile), StandardCharsets.UTF_8))) {
+            for (int i = 1; i <= doctors; i++) {
+                pw.println(new Doctor(i, "Doctor " + i, "Specialization " + (i % 12)).toFileString());
+            }
+        }
+        // Consecutive rows fill each doctor's day with 15-minute slots from 08:00 to 18:00.
+        try (PrintWriter pw = new PrintWriter(Files.newBufferedWriter(Path.of(appointmentFile), StandardCharsets.UTF_8))) {
+            for (int i = 1; i <= rows; i++) {
+                int n = i - 1;
+                int doctor = n % doctors + 1;
+                int slot = (n / doctors) % 40;
+                int epochDay = 20000 + n / (doctors * 40);
+                int start = 8 * 60 + slot * 15;
+                pw.println(new Appointment(i, rnd.nextInt(rows) + 1, doctor, epochDay, start, start + 15,
+                        AppointmentStatus.BOOKED).toFileString());
+            }
+        }
+    }
+}
@@ -0,0 +1,5700 @@
+package hospital;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Hospital Appointment Management System
+ *
+ * Console-based Java application with file-based storage.
+ * All classes are kept in a single file for simplicity.
+ *
+ * To build and run the tests (JUnit, src/test/java), including the
+ * concurrent booking stress test and the HTTP load test, then run:
+ *   gradle build
+ *   java -jar build/libs/hospital-1.0.jar
+ * (java -cp build/classes/java/main hospital.HospitalAppointmentSystem does the
+ * same; the examples below write java HospitalAppointmentSystem for either.)
+ * To run with append-only journal storage:
+ *   java -Dhospital.storage=journal HospitalAppointmentSystem
+ * To keep each table in a single-file store updated one record at a time:
+ *   java -Dhospital.storage=db HospitalAppointmentSystem
+ * To keep appointments in the binary columnar format:
+ *   java -Dhospital.appointmentFormat=binary HospitalAppointmentSystem
+ *   java HospitalAppointmentSystem bin-import|bin-export [from] [to]
+ * To benchmark with JMH and its gc profiler (src/jmh/java):
+ *   gradle jmh [-PjmhIncludes=RepositoryBenchmark|ParserBenchmark]
+ * To show the menu before the data files have finished loading:
+ *   java -Dhospital.startup=lazy HospitalAppointmentSystem
+ * To serve the JSON API on localhost (default port 8080):
+ *   java HospitalAppointmentSystem serve [port]
+ * To bulk-load CSV files (rejected rows are listed in <file>.rejects):
+ *   java HospitalAppointmentSystem import patients|doctors|appointments <file.csv>
+ * To follow the change events in events.log from a byte offset (see EventBus):
+ *   java HospitalAppointmentSystem tail [offset] [-f]
+ */
+public class HospitalAppointmentSystem {
+
+    // ---------- CONFIG: FILE PATHS ----------
+    private static final String PATIENT_FILE = "patients.txt";
+    private static final String DOCTOR_FILE = "doctors.txt";
+    private static final String APPOINTMENT_FILE = "appointments.txt";
+    private static final String APPOINTMENT_BINARY_FILE = "appointments.bin";
+    private static final String EVENT_FILE = "events.log";
+    // The data files above are relative to the working directory, which holds the DataLock.
+    private static final Path DATA_DIR = Paths.get("");
+
+    // ---------- CONFIG: STORAGE ----------
+    // -Dhospital.storage=journal appends changes to <file>.journal instead of rewriting the file.
+    private static final boolean JOURNALED =
+            "journal".equalsIgnoreCase(System.getProperty("hospital.storage", "text"));
+    private static final int JOURNAL_COMPACT_EVERY = Integer.getInteger("hospital.journal.compactEvery", 1000);
+    // -Dhospital.journal.groupCommitMs=N waits N ms before each journal fsync so concurrent appends share it.
+    private static final int GROUP_COMMIT_MS = Integer.getInteger("hospital.journal.groupCommitMs", 0);
+    // -Dhospital.storage=db keeps each table in a single-file record store, see RecordStore.
+    private static final boolean DB_STORAGE =
+            "db".equalsIgnoreCase(System.getProperty("hospital.storage", "text"));
+    // -Dhospital.appointmentFormat=binary keeps the appointment snapshot in appointments.bin.
+    private static final boolean BINARY_APPOINTMENTS =
+            "binary".equalsIgnoreCase(System.getProperty("hospital.appointmentFormat", "text"));
+    // -Dhospital.verifyIndexes=true re-scans the data files at startup and checks the in-memory indexes.
+    private static final boolean VERIFY_INDEXES = Boolean.getBoolean("hospital.verifyIndexes");
+    // -Dhospital.startup=lazy shows the menu at once and loads the data files in the background.
+    private static final boolean LAZY_STARTUP =
+            "lazy".equalsIgnoreCase(System.getProperty("hospital.startup", "eager"));
+
+    // ---------- MAIN ----------
+    public static void main(String[] args) {
+        boolean serve = args.length > 0 && args[0].equals("serve");
+        if (args.length > 0 && !serve) {
+            runCommand(args);
+            return;
+        }
+        DataLock lock;
+        try {
+            lock = DataLock.acquire(DATA_DIR);
+        } catch (IOException e) {
+            System.out.println("Error: " + e.getMessage());
+            return;
+        }
+        // The hook also keeps the lock reachable after main returns while the server runs.
+        Runtime.getRuntime().addShutdownHook(new Thread(lock::close));
+        ensureDataFilesExist();
+
+        // Lazily, each file loads on its own daemon thread; a menu option or request then waits
+        // only for the repositories it touches.
+        Executor loader = LAZY_STARTUP ? task -> {
+            Thread t = new Thread(task, "hospital-load");
+            t.setDaemon(true);
+            t.start();
+        } : Runnable::run;
+        PatientRepository patientRepo = new PatientRepository(PATIENT_FILE, loader);
+        DoctorRepository doctorRepo = new DoctorRepository(DOCTOR_FILE, loader);
+        AppointmentRepository appointmentRepo = new AppointmentRepository(
+                BINARY_APPOINTMENTS ? APPOINTMENT_BINARY_FILE : APPOINTMENT_FILE, loader);
+        if (!LAZY_STARTUP) {
+            try {
+                patientRepo.awaitLoaded();
+                doctorRepo.awaitLoaded();
+                appointmentRepo.awaitLoaded();
+            } catch (UncheckedIOException e) {
+                System.out.println("Error: " + e.getMessage());
+                return;
+            }
+        }
+
+        EventBus events = EventBus.open(lock);
+        Runtime.getRuntime().addShutdownHook(new Thread(events::close));
+        PatientService patientService = new PatientService(patientRepo, events);
+        DoctorService doctorService = new DoctorService(doctorRepo, events);
+        AppointmentService appointmentService = new AppointmentService(appointmentRepo, patientRepo, doctorRepo, events);
+        ReportService reportService = new ReportService(appointmentRepo, doctorRepo);
+
+        if (serve) {
+            try {
+                HttpApi api = new HttpApi(patientService, doctorService, appointmentService, reportService);
+                InetSocketAddress address = api.start(args.length > 1 ? Integer.parseInt(args[1]) : 8080);
+                Runtime.getRuntime().addShutdownHook(new Thread(api::stop));
+                System.out.println("Serving on http://" + address.getHostString() + ":" + address.getPort()
+                        + "/ (Ctrl+C to stop)");
+            } catch (IOException | NumberFormatException e) {
+                System.out.println("Error: could not start server. " + e.getMessage());
+            }
+            return;
+        }
+
+        Scanner scanner = new Scanner(System.in);
+        Console console = new Console(scanner, patientService, doctorService, appointmentService, reportService);
+        boolean running = true;
+        reportStartup();
+
+        while (running) {
+            printMainMenu();
+            System.out.print("Enter choice: ");
+            String choice = scanner.nextLine().trim();
+
+            try {
+                console.run(choice);
+            } catch (UncheckedIOException e) {
+                System.out.println("Error: the change was not saved. " + e.getMessage());
+            }
+            if (choice.equals("0")) running = false;
+
+            System.out.println();
+        }
+
+        scanner.close();
+    }
+
+    private static final Metrics.Op FIRST_PROMPT = Metrics.op("startup.firstPrompt");
+
+    // Time from JVM start to the first menu prompt.
+    private static void reportStartup() {
+        long uptimeMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+        FIRST_PROMPT.record(System.nanoTime() - uptimeMillis * 1_000_000);
+        System.out.println("Ready in " + uptimeMillis + " ms" + (LAZY_STARTUP ? " (data still loading in the background)." : "."));
+    }
+
+    // Non-interactive commands: java HospitalAppointmentSystem <command> [args]
+    private static void runCommand(String[] args) {
+        try {
+            switch (args[0]) {
+                case "bin-import": {
+                    String from = args.length > 1 ? args[1] : APPOINTMENT_FILE;
+                    String to = args.length > 2 ? args[2] : APPOINTMENT_BINARY_FILE;
+                    DataLock lock = DataLock.acquire(DATA_DIR);
+                    try {
+                        int n = AppointmentBinaryFile.importText(from, to);
+                        System.out.println("Imported " + n + " appointments from " + from + " into " + to + ".");
+                    } finally {
+                        lock.close();
+                    }
+                    break;
+                }
+                case "bin-export": {
+                    String from = args.length > 1 ? args[1] : APPOINTMENT_BINARY_FILE;
+                    String to = args.length > 2 ? args[2] : APPOINTMENT_FILE;
+                    DataLock lock = DataLock.acquire(DATA_DIR);
+                    try {
+                        int n = AppointmentBinaryFile.exportText(from, to);
+                        System.out.println("Exported " + n + " appointments from " + from + " into " + to + ".");
+                    } finally {
+                        lock.close();
+                    }
+                    break;
+                }
+                case "tail": {
+                    long offset = 0;
+                    boolean follow = false;
+                    for (int i = 1; i < args.length; i++) {
+                        if (args[i].equals("-f")) follow = true;
+                        else offset = Long.parseLong(args[i]);
+                    }
+                    EventBus.tail(EVENT_FILE, offset, follow, System.out);
+                    break;
+                }
+                case "import":
+                    if (args.length < 3) {
+                        System.out.println("Usage: import patients|doctors|appointments <file.csv>");
+                        break;
+                    }
+                    DataLock lock = DataLock.acquire(DATA_DIR);
+                    try {
+                        ensureDataFilesExist();
+                        BulkImport.main(lock, args[1], Paths.get(args[2]));
+                    } finally {
+                        lock.close();
+                    }
+                    break;
+                default:
+                    System.out.println("Unknown command: " + args[0]);
+                    System.out.println("Commands: bin-import [text] [binary], bin-export [binary] [text], "
+                            + "serve [port], tail [offset] [-f], "
+                            + "import patients|doctors|appointments <file.csv>");
+            }
+        } catch (Exception e) {
+            System.out.println("Error: " + e);
+        }
+    }
+
+    private static void printMainMenu() {
+        System.out.println("========================================");
+        System.out.println("   HOSPITAL APPOINTMENT MANAGEMENT");
+        System.out.println("========================================");
+        System.out.println("1. Add Patient");
+        System.out.println("2. List Patients");
+        System.out.println("3. Add Doctor");
+        System.out.println("4. List Doctors");
+        System.out.println("5. Book Appointment");
+        System.out.println("6. List Appointments");
+        System.out.println("7. Cancel Appointment");
+        System.out.println("8. Search Patients by Name");
+        System.out.println("9. Find Patient by Phone");
+        System.out.println("10. Patient Appointment History");
+        System.out.println("11. Doctor Daily Agenda");
+        System.out.println("12. Metrics");
+        System.out.println("13. Find Free Slots");
+        System.out.println("14. Set Doctor Working Hours");
+        System.out.println("15. Book Any Doctor by Specialization");
+        System.out.println("16. Reports");
+        System.out.println("0. Exit");
+        System.out.println("========================================");
+    }
+
+    private static void ensureDataFilesExist() {
+        try {
+            for (String file : new String[] {PATIENT_FILE, DOCTOR_FILE, APPOINTMENT_FILE, APPOINTMENT_BINARY_FILE}) {
+                RecordFile.recoverTempFile(file);
+                RecordFile.recoverTempFile(file + ".journal");
+                RecordFile.recoverTempFile(file + ".ids");
+                RecordFile.recoverTempFile(RecordStore.dbPath(file));
+            }
+            RecordFile.recoverTempFile(AppointmentBinaryFile.keptPath(APPOINTMENT_BINARY_FILE));
+
+            File p = new File(PATIENT_FILE);
+            if (!p.exists()) p.createNewFile();
+
+            File d = new File(DOCTOR_FILE);
+            if (!d.exists()) d.createNewFile();
+
+            File a = new File(APPOINTMENT_FILE);
+            if (!a.exists()) a.createNewFile();
+
+            File bin = new File(APPOINTMENT_BINARY_FILE);
+            if (BINARY_APPOINTMENTS && !bin.exists()) {
+                int n = AppointmentBinaryFile.importText(APPOINTMENT_FILE, APPOINTMENT_BINARY_FILE);
+                if (n > 0) System.out.println("Converted " + n + " appointments to " + APPOINTMENT_BINARY_FILE + ".");
+            }
+        } catch (IOException e) {
+            System.out.println("Warning: Could not create data files. " + e.getMessage());
+        }
+    }
+
+    // =========================================================
+    // MODEL CLASSES
+    // =========================================================
+
+    static class Patient {
+        private int id;
+        private String name;
+        private int age;
+        private String gender;
+        private String phone;
+
+        public Patient(int id, String name, int age, String gender, String phone) {
+            this.id = id;
+            this.name = name;
+            this.age = age;
+            this.gender = gender;
+            this.phone = phone;
+        }
+
+        public int getId() { return id; }
+        public String getName() { return name; }
+        public int getAge() { return age; }
+        public String getGender() { return gender; }
+        public String getPhone() { return phone; }
+
+        public String toFileString() {
+            return id + "|" + escape(name) + "|" + age + "|" + escape(gender) + "|" + escape(phone);
+        }
+
+        public static Patient fromFileString(String line) {
+            FieldReader in = new FieldReader(line);
+            try {
+                int id = in.nextId();
+                String name = in.nextString();
+                int age = in.nextInt();
+                String gender = in.nextString();
+                String phone = in.nextString();
+                return new Patient(id, name, age, gender, phone);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("ID: %d | Name: %s | Age: %d | Gender: %s | Phone: %s",
+                    id, name, age, gender, phone);
+        }
+    }
+
+    static class Doctor {
+        private int id;
+        private String name;
+        private String specialization;
+        private WorkingHours hours;
+
+        public Doctor(int id, String name, String specialization) {
+            this(id, name, specialization, WorkingHours.DEFAULT);
+        }
+
+        public Doctor(int id, String name, String specialization, WorkingHours hours) {
+            this.id = id;
+            this.name = name;
+            this.specialization = specialization;
+            this.hours = hours;
+        }
+
+        public int getId() { return id; }
+        public String getName() { return name; }
+        public String getSpecialization() { return specialization; }
+        public WorkingHours getHours() { return hours; }
+
+        public Doctor withId(int id) {
+            return new Doctor(id, name, specialization, hours);
+        }
+
+        public Doctor withHours(WorkingHours hours) {
+            return new Doctor(id, name, specialization, hours);
+        }
+
+        public String toFileString() {
+            return id + "|" + escape(name) + "|" + escape(specialization) + "|" + hours.toFileString();
+        }
+
+        // Lines written before working hours existed have three fields and get the default hours.
+        public static Doctor fromFileString(String line) {
+            FieldReader in = new FieldReader(line);
+            try {
+                int id = in.nextId();
+                String name = in.nextString();
+                String specialization = in.nextString();
+                WorkingHours hours = WorkingHours.DEFAULT;
+                if (in.hasNext()) {
+                    hours = WorkingHours.parse(in.nextString(), in.nextString(), in.nextString());
+                }
+                return new Doctor(id, name, specialization, hours);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("ID: %d | Name: %s | Specialization: %s | Hours: %s",
+                    id, name, specialization, hours);
+        }
+    }
+
+    /**
+     * A doctor's weekly template: the days worked, one daily window and the
+     * length of the slots offered to patients. Stored as three extra fields on
+     * the doctor line, e.g. "12345|09:00-17:00|30" (ISO day numbers, Monday = 1).
+     */
+    static class WorkingHours {
+        static final WorkingHours DEFAULT = new WorkingHours(0b0011111, 9 * 60, 17 * 60, 30);
+        private static final String[] DAY_NAMES = {"Mon", "Tue", "Wed", "Thu", "Fri", "Sat", "Sun"};
+
+        private final int dayMask; // bit 0 = Monday ... bit 6 = Sunday
+        private final int startMinute;
+        private final int endMinute;
+        private final int slotMinutes;
+
+        public WorkingHours(int dayMask, int startMinute, int endMinute, int slotMinutes) {
+            this.dayMask = dayMask;
+            this.startMinute = startMinute;
+            this.endMinute = endMinute;
+            this.slotMinutes = slotMinutes;
+        }
+
+        public int getStartMinute() { return startMinute; }
+        public int getEndMinute() { return endMinute; }
+        public int getSlotMinutes() { return slotMinutes; }
+
+        // 0 = Monday; epoch day 0 (1970-01-01) was a Thursday.
+        static int dayOfWeek(int epochDay) {
+            return Math.floorMod(epochDay + 3, 7);
+        }
+
+        public boolean worksOn(int epochDay) {
+            return (dayMask & (1 << dayOfWeek(epochDay))) != 0;
+        }
+
+        public String formatDays() {
+            StringBuilder sb = new StringBuilder(7);
+            for (int d = 0; d < 7; d++) {
+                if ((dayMask & (1 << d)) != 0) sb.append((char) ('1' + d));
+            }
+            return sb.toString();
+        }
+
+        // Throws IllegalArgumentException naming the field that is wrong.
+        public static WorkingHours parse(String days, String window, String slot) {
+            int mask = 0;
+            for (int i = 0; i < days.length(); i++) {
+                char c = days.charAt(i);
+                if (c < '1' || c > '7') throw new IllegalArgumentException("Invalid working days: " + days + " (use 1-7, Monday = 1)");
+                mask |= 1 << (c - '1');
+            }
+            if (mask == 0) throw new IllegalArgumentException("Working days must not be empty.");
+            int range = Appointment.parseTimeSlot(window);
+            if (range == Appointment.INVALID || (range >>> 16) >= (range & 0xFFFF)) {
+                throw new IllegalArgumentException("Invalid working hours: " + window + " (use HH:MM-HH:MM)");
+            }
+            int length;
+            try {
+                length = Integer.parseInt(slot.trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid slot length: " + slot);
+            }
+            if (length <= 0 || length > (range & 0xFFFF) - (range >>> 16)) {
+                throw new IllegalArgumentException("Slot length must be between 1 and the length of the working day.");
+            }
+            return new WorkingHours(mask, range >>> 16, range & 0xFFFF, length);
+        }
+
+        public String toFileString() {
+            return formatDays() + "|" + Appointment.formatTimeSlot(startMinute, endMinute) + "|" + slotMinutes;
+        }
+
+        @Override
+        public String toString() {
+            StringJoiner days = new StringJoiner(" ");
+            for (int d = 0; d < 7; d++) {
+                if ((dayMask & (1 << d)) != 0) days.add(DAY_NAMES[d]);
+            }
+            return days + " " + Appointment.formatTimeSlot(startMinute, endMinute) + ", " + slotMinutes + " min slots";
+        }
+    }
+
+    enum AppointmentStatus { BOOKED, CANCELLED }
+
+    static class Appointment {
+        // Sentinel returned by the parse helpers for malformed input.
+        static final int INVALID = Integer.MIN_VALUE;
+
+        private final int id;
+        private final int patientId;
+        private final int doctorId;
+        private final int epochDay;      // days since 1970-01-01, e.g. 2025-11-24 -> 20416
+        private final short startMinute; // minutes since midnight, e.g. 10:00 -> 600
+        private final short endMinute;   // exclusive, e.g. 10:15 -> 615
+        private final AppointmentStatus status;
+
+        public Appointment(int id, int patientId, int doctorId,
+                           int epochDay, int startMinute, int endMinute, AppointmentStatus status) {
+            this.id = id;
+            this.patientId = patientId;
+            this.doctorId = doctorId;
+            this.epochDay = epochDay;
+            this.startMinute = (short) startMinute;
+            this.endMinute = (short) endMinute;
+            this.status = status;
+        }
+
+        public int getId() { return id; }
+        public int getPatientId() { return patientId; }
+        public int getDoctorId() { return doctorId; }
+        public int getEpochDay() { return epochDay; }
+        public int getStartMinute() { return startMinute; }
+        public int getEndMinute() { return endMinute; }
+        public AppointmentStatus getStatus() { return status; }
+        public boolean isBooked() { return status == AppointmentStatus.BOOKED; }
+        public String getDate() { return formatDate(epochDay); }
+        public String getTimeSlot() { return formatTimeSlot(startMinute, endMinute); }
+
+        public Appointment withStatus(AppointmentStatus status) {
+            return new Appointment(id, patientId, doctorId, epochDay, startMinute, endMinute, status);
+        }
+
+        public boolean overlaps(int start, int end) {
+            return startMinute < end && start < endMinute;
+        }
+
+        public String toFileString() {
+            return id + "|" + patientId + "|" + doctorId + "|" +
+                    getDate() + "|" + getTimeSlot() + "|" + status;
+        }
+
+        public static Appointment fromFileString(String line) {
+            FieldReader in = new FieldReader(line);
+            try {
+                int id = in.nextId();
+                int patientId = in.nextId();
+                int doctorId = in.nextId();
+                int epochDay = parseDate(in.nextString());
+                int slot = parseTimeSlot(in.nextString());
+                AppointmentStatus status = parseStatus(in.nextString());
+                if (epochDay == INVALID || slot == INVALID || status == null) return null;
+                return new Appointment(id, patientId, doctorId, epochDay, slot >>> 16, slot & 0xFFFF, status);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        // "2025-11-24" -> epoch day, or INVALID.
+        public static int parseDate(String s) {
+            s = s.trim();
+            if (s.length() != 10 || s.charAt(4) != '-' || s.charAt(7) != '-') return INVALID;
+            int y = digits(s, 0, 4), m = digits(s, 5, 7), d = digits(s, 8, 10);
+            if (y < 0 || m < 0 || d < 0) return INVALID;
+            try {
+                return (int) LocalDate.of(y, m, d).toEpochDay();
+            } catch (DateTimeException e) {
+                return INVALID;
+            }
+        }
+
+        public static String formatDate(int epochDay) {
+            return LocalDate.ofEpochDay(epochDay).toString();
+        }
+
+        // "10:00-10:15" or "10:00 - 10:15" -> (start << 16) | end in minutes, or INVALID.
+        public static int parseTimeSlot(String s) {
+            int dash = s.indexOf('-');
+            if (dash < 0) return INVALID;
+            int start = parseTime(s, 0, dash);
+            int end = parseTime(s, dash + 1, s.length());
+            if (start == INVALID || end == INVALID || start >= end) return INVALID;
+            return (start << 16) | end;
+        }
+
+        // "H:MM" or "HH:MM" within s[from, to), surrounding blanks ignored.
+        private static int parseTime(String s, int from, int to) {
+            while (from < to && s.charAt(from) == ' ') from++;
+            while (to > from && s.charAt(to - 1) == ' ') to--;
+            int colon = to - 3;
+            if (colon - from < 1 || colon - from > 2 || s.charAt(colon) != ':') return INVALID;
+            int h = digits(s, from, colon), m = digits(s, colon + 1, to);
+            if (h < 0 || m < 0 || m > 59) return INVALID;
+            int minutes = h * 60 + m;
+            return minutes > 24 * 60 ? INVALID : minutes;
+        }
+
+        // Non-negative decimal value of s[from, to), or -1 if any character is not a digit.
+        private static int digits(String s, int from, int to) {
+            int v = 0;
+            for (int i = from; i < to; i++) {
+                char c = s.charAt(i);
+                if (c < '0' || c > '9') return -1;
+                v = v * 10 + (c - '0');
+            }
+            return v;
+        }
+
+        public static String formatTimeSlot(int start, int end) {
+            char[] out = new char[11];
+            writeTime(out, 0, start);
+            out[5] = '-';
+            writeTime(out, 6, end);
+            return new String(out);
+        }
+
+        private static void writeTime(char[] out, int at, int minutes) {
+            int h = minutes / 60, m = minutes % 60;
+            out[at] = (char) ('0' + h / 10);
+            out[at + 1] = (char) ('0' + h % 10);
+            out[at + 2] = ':';
+            out[at + 3] = (char) ('0' + m / 10);
+            out[at + 4] = (char) ('0' + m % 10);
+        }
+
+        public static AppointmentStatus parseStatus(String s) {
+            for (AppointmentStatus st : AppointmentStatus.values()) {
+                if (st.name().equalsIgnoreCase(s.trim())) return st;
+            }
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "Appointment ID: %d | PatientID: %d | DoctorID: %d | Date: %s | Time: %s | Status: %s",
+                    id, patientId, doctorId, getDate(), getTimeSlot(), status);
+        }
+    }
+
+    /** Filters and cursor for AppointmentRepository.query; unset filters match everything. */
+    static class AppointmentQuery {
+        int doctorId;                       // 0 = any
+        int patientId;                      // 0 = any
+        int fromDay = Integer.MIN_VALUE;    // inclusive epoch day
+        int toDay = Integer.MAX_VALUE;      // inclusive epoch day
+        AppointmentStatus status;           // null = any
+        int afterId;                        // cursor: only ids greater than this
+        int limit = 50;
+
+        public AppointmentQuery doctor(int id) { doctorId = id; return this; }
+        public AppointmentQuery patient(int id) { patientId = id; return this; }
+        public AppointmentQuery from(int epochDay) { fromDay = epochDay; return this; }
+        public AppointmentQuery to(int epochDay) { toDay = epochDay; return this; }
+        public AppointmentQuery status(AppointmentStatus s) { status = s; return this; }
+        public AppointmentQuery after(int id) { afterId = id; return this; }
+        public AppointmentQuery limit(int n) {
+            if (n < 1) throw new IllegalArgumentException("Page limit must be at least 1: " + n);
+            limit = n;
+            return this;
+        }
+
+        public boolean matches(Appointment a) {
+            return (doctorId == 0 || a.getDoctorId() == doctorId)
+                    && (patientId == 0 || a.getPatientId() == patientId)
+                    && a.getEpochDay() >= fromDay && a.getEpochDay() <= toDay
+                    && (status == null || a.getStatus() == status);
+        }
+    }
+
+    /** One page of query results; nextCursor is 0 when there is nothing further. */
+    static class AppointmentPage {
+        final List<Appointment> items;
+        final int nextCursor;
+
+        AppointmentPage(List<Appointment> items, int nextCursor) {
+            this.items = items;
+            this.nextCursor = nextCursor;
+        }
+    }
+
+    /** An unbooked slot in a doctor's working hours. */
+    static class FreeSlot {
+        final Doctor doctor;
+        final int epochDay;
+        final int startMinute;
+        final int endMinute;
+
+        FreeSlot(Doctor doctor, int epochDay, int startMinute, int endMinute) {
+            this.doctor = doctor;
+            this.epochDay = epochDay;
+            this.startMinute = startMinute;
+            this.endMinute = endMinute;
+        }
+
+        @Override
+        public String toString() {
+            return Appointment.formatDate(epochDay) + " " + Appointment.formatTimeSlot(startMinute, endMinute)
+                    + " | Doctor: " + doctor.getName() + " (ID:" + doctor.getId() + ") | " + doctor.getSpecialization();
+        }
+    }
+
+    // =========================================================
+    // REPOSITORIES (FILE HANDLING)
+    // =========================================================
+
+    /**
+     * What every repository offers regardless of how its file is stored. The
+     * storage itself is a RecordFile chosen by RecordFile.open, and the code
+     * behind these methods lives in CachedRepository. Entity-specific lookups
+     * stay on the concrete classes; callers that need none of them take a
+     * Repository.
+     */
+    interface Repository<T> {
+        List<T> findAll();
+
+        T findById(int id);
+
+        // Returns once the record is on disk.
+        void add(T record);
+
+        // Adds a whole batch; on failure none of it is kept.
+        void addAll(List<T> records);
+
+        // Replaces the stored record with the same id; returns once it is on disk.
+        void update(T record);
+
+        // Replaces every record.
+        void saveAll(List<T> records);
+
+        int getNextId();
+
+        // Reserves the next id; concurrent callers never receive the same value.
+        int allocateId();
+    }
+
+    /**
+     * The part every repository shares: a write-through IdTable cache over
+     * one RecordFile, loaded once on an executor, and the id allocator.
+     * Subclasses keep their own lookup indexes in step through index,
+     * unindex and clearIndexes, which run under the repository lock.
+     */
+    abstract static class CachedRepository<T> implements Repository<T> {
+        private final Metrics.Op findAllOp;
+        private final Metrics.Op saveAllOp;
+        private final Metrics.Op addOp;
+        private final Metrics.Op addAllOp;
+        private final Metrics.Op updateOp;
+
+        protected final RecordFile<T> file;
+        // Write-through cache: the file is read once and persisted on every mutation.
+        protected final IdTable<T> cache = new IdTable<>();
+        protected final IdAllocator ids;
+        private CompletableFuture<Void> loaded;
+
+        protected CachedRepository(String filePath, String label, RecordFile<T> file) {
+            this.file = file;
+            this.ids = new IdAllocator(filePath);
+            this.findAllOp = Metrics.op(label + ".findAll");
+            this.saveAllOp = Metrics.op(label + ".saveAll");
+            this.addOp = Metrics.op(label + ".add");
+            this.addAllOp = Metrics.op(label + ".addAll");
+            this.updateOp = Metrics.op(label + ".update");
+        }
+
+        // Called last in the subclass constructor, once its indexes exist, so put() can fill them.
+        protected final void startLoading(Executor loader) {
+            loaded = CompletableFuture.runAsync(() -> {
+                file.load(this::put);
+                ids.observe(file.highestPreservedId());
+                afterLoad();
+            }, loader);
+        }
+
+        protected void afterLoad() {
+        }
+
+        // Every public method waits for the load; a failed load is rethrown to each caller.
+        public final void awaitLoaded() {
+            RecordFile.await(loaded);
+        }
+
+        protected abstract int idOf(T record);
+
+        // Adds the record to the indexes; 'previous' is the record it replaced, or null.
+        protected abstract void index(T record, T previous);
+
+        protected abstract void unindex(T record);
+
+        protected abstract void clearIndexes();
+
+        protected final void put(T record) {
+            T previous = cache.set(idOf(record), record);
+            ids.observe(idOf(record));
+            index(record, previous);
+        }
+
+        // Undoes put() for a new record whose write failed.
+        private void remove(T record) {
+            cache.set(idOf(record), null);
+            unindex(record);
+        }
+
+        public synchronized List<T> findAll() {
+            awaitLoaded();
+            long started = System.nanoTime();
+            try {
+                return new ArrayList<>(cache.values());
+            } finally {
+                findAllOp.record(started);
+            }
+        }
+
+        public synchronized T findById(int id) {
+            awaitLoaded();
+            return cache.get(id);
+        }
+
+        // Returns once the record is on disk; the fsync is waited for outside the lock.
+        public void add(T record) {
+            awaitLoaded();
+            long started = System.nanoTime();
+            try {
+                long ticket;
+                synchronized (this) {
+                    put(record);
+                    try {
+                        ticket = file.append(record, cache.values());
+                    } catch (UncheckedIOException e) {
+                        remove(record);
+                        throw e;
+                    }
+                }
+                file.sync(ticket);
+            } finally {
+                addOp.record(started);
+            }
+        }
+
+        // Adds a whole batch and persists it with a single write of the file.
+        public synchronized void addAll(List<T> records) {
+            awaitLoaded();
+            long started = System.nanoTime();
+            try {
+                for (T item : records) {
+                    put(item);
+                }
+                try {
+                    file.appendAll(records, cache.values());
+                } catch (UncheckedIOException e) {
+                    for (T item : records) remove(item);
+                    throw e;
+                }
+            } finally {
+                addAllOp.record(started);
+            }
+        }
+
+        public void update(T record) {
+            awaitLoaded();
+            long started = System.nanoTime();
+            try {
+                long ticket;
+                synchronized (this) {
+                    T previous = cache.get(idOf(record));
+                    put(record);
+                    try {
+                        ticket = file.append(record, cache.values());
+                    } catch (UncheckedIOException e) {
+                        if (previous != null) put(previous);
+                        else remove(record);
+                        throw e;
+                    }
+                }
+                file.sync(ticket);
+            } finally {
+                updateOp.record(started);
+            }
+        }
+
+        public synchronized void saveAll(List<T> records) {
+            awaitLoaded();
+            long started = System.nanoTime();
+            try {
+                cache.clear();
+                clearIndexes();
+                for (T item : records) {
+                    put(item);
+                }
+                file.writeAll(cache.values());
+            } finally {
+                saveAllOp.record(started);
+            }
+        }
+
+        public int getNextId() {
+            awaitLoaded();
+            return ids.peekNext();
+        }
+
+        // Reserves the next id; unlike getNextId, concurrent callers never receive the same value.
+        public int allocateId() {
+            awaitLoaded();
+            return ids.next();
+        }
+    }
+
+    static class PatientRepository extends CachedRepository<Patient> {
+        // Secondary indexes, kept in step with the cache: lower-cased name (sorted, for prefix search)
+        // and phone digits (exact match). Both map to ids in insertion order.
+        private final TreeMap<String, List<Integer>> byName = new TreeMap<>();
+        private final Map<String, List<Integer>> byPhone = new HashMap<>();
+
+        public PatientRepository(String filePath) {
+            this(filePath, Runnable::run);
+        }
+
+        // Loads the file on 'loader'; every public method waits for the load to finish first.
+        public PatientRepository(String filePath, Executor loader) {
+            super(filePath, "patients", RecordFile.open(filePath, "patients", Patient::fromFileString, Patient::toFileString));
+            startLoading(loader);
+        }
+
+        @Override
+        protected int idOf(Patient p) {
+            return p.getId();
+        }
+
+        @Override
+        protected void index(Patient p, Patient previous) {
+            if (previous != null) unindex(previous);
+            byName.computeIfAbsent(nameKey(p.getName()), k -> new ArrayList<>(1)).add(p.getId());
+            byPhone.computeIfAbsent(phoneKey(p.getPhone()), k -> new ArrayList<>(1)).add(p.getId());
+        }
+
+        @Override
+        protected void unindex(Patient p) {
+            unindex(byName, nameKey(p.getName()), p.getId());
+            unindex(byPhone, phoneKey(p.getPhone()), p.getId());
+        }
+
+        @Override
+        protected void clearIndexes() {
+            byName.clear();
+            byPhone.clear();
+        }
+
+        private static void unindex(Map<String, List<Integer>> index, String key, int id) {
+            List<Integer> ids = index.get(key);
+            if (ids == null) return;
+            ids.remove(Integer.valueOf(id));
+            if (ids.isEmpty()) index.remove(key);
+        }
+
+        static String nameKey(String name) {
+            return name.trim().toLowerCase(Locale.ROOT);
+        }
+
+        // Digits only, so "+1 (555) 010-2030" and "15550102030" find the same patient.
+        static String phoneKey(String phone) {
+            StringBuilder sb = new StringBuilder(phone.length());
+            for (int i = 0; i < phone.length(); i++) {
+                char c = phone.charAt(i);
+                if (c >= '0' && c <= '9') sb.append(c);
+            }
+            return sb.toString();
+        }
+
+        // Patients whose name starts with the prefix (case-insensitive), in name order, at most limit of them.
+        public synchronized List<Patient> findByNamePrefix(String prefix, int limit) {
+            awaitLoaded();
+            String from = nameKey(prefix);
+            List<Patient> result = new ArrayList<>();
+            for (List<Integer> ids : byName.subMap(from, true, from + Character.MAX_VALUE, false).values()) {
+                for (int id : ids) {
+                    if (result.size() >= limit) return result;
+                    result.add(cache.get(id));
+                }
+            }
+            return result;
+        }
+
+        public synchronized List<Patient> findByPhone(String phone) {
+            awaitLoaded();
+            String key = phoneKey(phone);
+            List<Integer> ids = key.isEmpty() ? null : byPhone.get(key);
+            if (ids == null) return Collections.emptyList();
+            List<Patient> result = new ArrayList<>(ids.size());
+            for (int id : ids) result.add(cache.get(id));
+            return result;
+        }
+    }
+
+    static class DoctorRepository extends CachedRepository<Doctor> {
+        // Lower-cased specialization -> doctor ids ascending, kept in step with the cache.
+        private final Map<String, IdList> bySpecialization = new HashMap<>();
+
+        public DoctorRepository(String filePath) {
+            this(filePath, Runnable::run);
+        }
+
+        // Loads the file on 'loader'; every public method waits for the load to finish first.
+        public DoctorRepository(String filePath, Executor loader) {
+            super(filePath, "doctors", RecordFile.open(filePath, "doctors", Doctor::fromFileString, Doctor::toFileString));
+            startLoading(loader);
+        }
+
+        @Override
+        protected int idOf(Doctor d) {
+            return d.getId();
+        }
+
+        @Override
+        protected void index(Doctor d, Doctor previous) {
+            if (previous != null) unindex(previous);
+            bySpecialization.computeIfAbsent(specializationKey(d.getSpecialization()), k -> new IdList()).add(d.getId());
+        }
+
+        @Override
+        protected void unindex(Doctor d) {
+            String key = specializationKey(d.getSpecialization());
+            IdList ids = bySpecialization.get(key);
+            if (ids != null && ids.remove(d.getId()) && ids.isEmpty()) bySpecialization.remove(key);
+        }
+
+        @Override
+        protected void clearIndexes() {
+            bySpecialization.clear();
+        }
+
+        static String specializationKey(String specialization) {
+            return specialization.trim().toLowerCase(Locale.ROOT);
+        }
+
+        // Doctors with the specialization (case-insensitive), by id.
+        public synchronized List<Doctor> findBySpecialization(String specialization) {
+            awaitLoaded();
+            IdList ids = bySpecialization.get(specializationKey(specialization));
+            if (ids == null) return new ArrayList<>();
+            List<Doctor> result = new ArrayList<>(ids.size());
+            for (int i = 0; i < ids.size(); i++) result.add(cache.get(ids.get(i)));
+            return result;
+        }
+    }
+
+    // The cache also hands out the lock-free snapshots reports read, see snapshot().
+    static class AppointmentRepository extends CachedRepository<Appointment> {
+        private static final Metrics.Op QUERY = Metrics.op("appointments.query");
+        private static final Metrics.Op SNAPSHOT = Metrics.op("appointments.snapshot");
+
+        private static final int QUERY_CHUNK = 4096;
+        // Longest date range a doctor query reads day by day from byDoctorDay.
+        private static final int MAX_INDEXED_DAYS = 366;
+        // BOOKED intervals per (doctorId, epochDay), see scheduleKey.
+        private final Map<Long, DaySchedule> schedules = new HashMap<>();
+        // Adjacency indexes over every appointment regardless of status, ids kept ascending.
+        private final IdTable<IdList> byPatient = new IdTable<>();
+        private final Map<Long, IdList> byDoctorDay = new HashMap<>();
+        // BOOKED appointments per doctor across all days; the tie-break for assignment.
+        private final IdTable<int[]> bookedByDoctor = new IdTable<>();
+        // Largest id in the cache; bounds the id walk in query().
+        private int maxId = 0;
+
+        public AppointmentRepository(String filePath) {
+            this(filePath, Runnable::run);
+        }
+
+        // Loads the file on 'loader'; every public method waits for the load to finish first.
+        public AppointmentRepository(String filePath, Executor loader) {
+            super(filePath, "appointments", filePath.endsWith(".bin")
+                    ? new AppointmentBinaryFile(filePath)
+                    : RecordFile.open(filePath, "appointments", Appointment::fromFileString, Appointment::toFileString));
+            startLoading(loader);
+        }
+
+        @Override
+        protected void afterLoad() {
+            if (VERIFY_INDEXES) verifyIndexes();
+        }
+
+        @Override
+        protected int idOf(Appointment a) {
+            return a.getId();
+        }
+
+        @Override
+        protected void index(Appointment a, Appointment previous) {
+            if (a.getId() > maxId) maxId = a.getId();
+            if (previous != null) unschedule(previous);
+            if (a.isBooked()) schedule(schedules, a);
+            if (previous != null && previous.isBooked()) countBooked(previous.getDoctorId(), -1);
+            if (a.isBooked()) countBooked(a.getDoctorId(), 1);
+            // Updates only ever change the status, so the adjacency entries stay where they are.
+            if (previous == null || previous.getPatientId() != a.getPatientId()
+                    || previous.getDoctorId() != a.getDoctorId() || previous.getEpochDay() != a.getEpochDay()) {
+                if (previous != null) unlink(byPatient, byDoctorDay, previous);
+                link(byPatient, byDoctorDay, a);
+            }
+        }
+
+        private static void link(IdTable<IdList> patients, Map<Long, IdList> doctorDays, Appointment a) {
+            IdList ids = patients.get(a.getPatientId());
+            if (ids == null) patients.set(a.getPatientId(), ids = new IdList());
+            ids.add(a.getId());
+            doctorDays.computeIfAbsent(scheduleKey(a.getDoctorId(), a.getEpochDay()), k -> new IdList()).add(a.getId());
+        }
+
+        private static void unlink(IdTable<IdList> patients, Map<Long, IdList> doctorDays, Appointment a) {
+            IdList ids = patients.get(a.getPatientId());
+            if (ids != null && ids.remove(a.getId()) && ids.isEmpty()) patients.set(a.getPatientId(), null);
+            long key = scheduleKey(a.getDoctorId(), a.getEpochDay());
+            ids = doctorDays.get(key);
+            if (ids != null && ids.remove(a.getId()) && ids.isEmpty()) doctorDays.remove(key);
+        }
+
+        // Long.hashCode folds the halves together, so (doctorId << 32 | epochDay) alone hashes as
+        // doctorId ^ epochDay and a year of doctor-days lands in a few thousand buckets. Multiplying
+        // by an odd constant keeps keys unique and spreads them.
+        private static long scheduleKey(int doctorId, int epochDay) {
+            return (((long) doctorId << 32) | (epochDay & 0xFFFFFFFFL)) * 0x9E3779B97F4A7C15L;
+        }
+
+        private static void schedule(Map<Long, DaySchedule> target, Appointment a) {
+            target.computeIfAbsent(scheduleKey(a.getDoctorId(), a.getEpochDay()), k -> new DaySchedule())
+                    .add(a.getId(), a.getStartMinute(), a.getEndMinute());
+        }
+
+        private void countBooked(int doctorId, int delta) {
+            int[] count = bookedByDoctor.get(doctorId);
+            if (count == null) bookedByDoctor.set(doctorId, count = new int[1]);
+            if ((count[0] += delta) == 0) bookedByDoctor.set(doctorId, null);
+        }
+
+        // A doctor's load on a day for least-loaded assignment: BOOKED appointments that day in
+        // the high half and BOOKED appointments overall in the low half, so plain long order
+        // compares the day first. Two map lookups, independent of how many appointments exist.
+        public synchronized long load(int doctorId, int epochDay) {
+            awaitLoaded();
+            DaySchedule day = schedules.get(scheduleKey(doctorId, epochDay));
+            int[] total = bookedByDoctor.get(doctorId);
+            return ((long) (day == null ? 0 : day.size()) << 32) | (total == null ? 0 : total[0]);
+        }
+
+        private void unschedule(Appointment a) {
+            long key = scheduleKey(a.getDoctorId(), a.getEpochDay());
+            DaySchedule day = schedules.get(key);
+            if (day != null && day.remove(a.getId(), a.getStartMinute()) && day.isEmpty()) {
+                schedules.remove(key);
+            }
+        }
+
+        // Returns the BOOKED appointment overlapping [startMinute, endMinute) for the doctor, or null.
+        public synchronized Appointment findConflict(int doctorId, int epochDay, int startMinute, int endMinute) {
+            awaitLoaded();
+            DaySchedule day = schedules.get(scheduleKey(doctorId, epochDay));
+            if (day == null) return null;
+            int id = day.findOverlap(startMinute, endMinute);
+            return id < 0 ? null : cache.get(id);
+        }
+
+        // Earliest start >= fromMinute where the doctor is free for 'length' minutes before dayEnd, or INVALID.
+        public synchronized int findNextFreeSlot(int doctorId, int epochDay, int fromMinute, int length, int dayEnd) {
+            awaitLoaded();
+            DaySchedule day = schedules.get(scheduleKey(doctorId, epochDay));
+            if (day == null) return fromMinute + length <= dayEnd ? fromMinute : Appointment.INVALID;
+            return day.nextFree(fromMinute, length, dayEnd);
+        }
+
+        // Starts of up to 'max' free slots that day, stepping through the doctor's hours from the
+        // template start and skipping slots that begin before fromMinute.
+        public synchronized int[] freeSlots(int doctorId, int epochDay, WorkingHours hours, int fromMinute, int max) {
+            awaitLoaded();
+            DaySchedule day = schedules.get(scheduleKey(doctorId, epochDay));
+            int length = hours.getSlotMinutes();
+            int[] found = new int[Math.min(max, Math.max(0, (hours.getEndMinute() - hours.getStartMinute()) / length))];
+            int n = 0;
+            for (int t = hours.getStartMinute(); t + length <= hours.getEndMinute() && n < max; t += length) {
+                if (t >= fromMinute && (day == null || day.isFree(t, t + length))) found[n++] = t;
+            }
+            return n == found.length ? found : Arrays.copyOf(found, n);
+        }
+
+        // Rebuilds the schedules from a fresh read of the file and reports any disagreement.
+        public synchronized void verifyScheduleIndex() {
+            awaitLoaded();
+            verifyIndexes();
+        }
+
+        private synchronized void verifyIndexes() {
+            IdTable<Appointment> onDisk = new IdTable<>();
+            try {
+                file.scan(a -> onDisk.set(a.getId(), a));
+            } catch (IOException e) {
+                System.out.println("Warning: could not re-read appointments to verify the indexes: " + e.getMessage());
+                return;
+            }
+
+            Map<Long, DaySchedule> expected = new HashMap<>();
+            IdTable<IdList> expectedPatients = new IdTable<>();
+            Map<Long, IdList> expectedDoctorDays = new HashMap<>();
+            IdTable<int[]> expectedBooked = new IdTable<>();
+            for (Appointment a : onDisk.values()) {
+                if (a.isBooked()) {
+                    schedule(expected, a);
+                    int[] count = expectedBooked.get(a.getDoctorId());
+                    if (count == null) expectedBooked.set(a.getDoctorId(), count = new int[1]);
+                    count[0]++;
+                }
+                link(expectedPatients, expectedDoctorDays, a);
+            }
+            int overlapping = 0;
+            for (DaySchedule day : expected.values()) {
+                if (day.hasOverlaps()) overlapping++;
+            }
+            if (overlapping > 0) {
+                System.out.println("Warning: " + overlapping + " doctor-day(s) contain overlapping bookings.");
+            }
+            boolean adjacencyMatches = expectedPatients.equals(byPatient) && expectedDoctorDays.equals(byDoctorDay);
+            if (!adjacencyMatches) {
+                System.out.println("Warning: patient/doctor index did not match " + onDisk.size() + " stored appointments; rebuilt.");
+                byPatient.clear();
+                expectedPatients.forEach(byPatient::set);
+                byDoctorDay.clear();
+                byDoctorDay.putAll(expectedDoctorDays);
+            }
+            boolean countsMatch = sameCounts(expectedBooked, bookedByDoctor);
+            if (!countsMatch) {
+                System.out.println("Warning: per-doctor booking counts did not match " + onDisk.size() + " stored appointments; rebuilt.");
+                bookedByDoctor.clear();
+                expectedBooked.forEach(bookedByDoctor::set);
+            }
+            if (!expected.equals(schedules)) {
+                System.out.println("Warning: schedule index did not match " + onDisk.size() + " stored appointments; rebuilt.");
+                schedules.clear();
+                schedules.putAll(expected);
+            } else if (overlapping == 0 && adjacencyMatches && countsMatch) {
+                System.out.println("Schedule index verified against " + onDisk.size() + " stored appointments.");
+            }
+        }
+
+        // IdTable.equals would compare the int[] cells by identity.
+        private static boolean sameCounts(IdTable<int[]> a, IdTable<int[]> b) {
+            if (a.size() != b.size()) return false;
+            boolean[] same = {true};
+            a.forEach((id, count) -> {
+                int[] other = b.get(id);
+                if (other == null || other[0] != count[0]) same[0] = false;
+            });
+            return same[0];
+        }
+
+        // Consistent view of every appointment as of now. Taking it holds the lock for O(ids / 4096);
+        // reading it holds no lock at all, so reports do not hold up bookings.
+        public synchronized IdTable.Snapshot<Appointment> snapshot() {
+            awaitLoaded();
+            long started = System.nanoTime();
+            try {
+                return cache.snapshot();
+            } finally {
+                SNAPSHOT.record(started);
+            }
+        }
+
+        // Every appointment of the patient, in id order.
+        public synchronized List<Appointment> findByPatient(int patientId) {
+            awaitLoaded();
+            return resolve(byPatient.get(patientId));
+        }
+
+        // Every appointment of the doctor on that day, in id order.
+        public synchronized List<Appointment> findByDoctorDay(int doctorId, int epochDay) {
+            awaitLoaded();
+            return resolve(byDoctorDay.get(scheduleKey(doctorId, epochDay)));
+        }
+
+        private List<Appointment> resolve(IdList ids) {
+            if (ids == null) return new ArrayList<>();
+            List<Appointment> result = new ArrayList<>(ids.size());
+            for (int i = 0; i < ids.size(); i++) result.add(cache.get(ids.get(i)));
+            return result;
+        }
+
+        // Queries on a patient, or on a doctor over at most MAX_INDEXED_DAYS, walk the adjacency
+        // indexes. Anything else walks ids upward from the cursor, skipping empty id blocks whole
+        // and releasing the lock every QUERY_CHUNK ids so bookings are not held up; its cost grows
+        // with the number of appointments after the cursor, not with the number of matches.
+        public AppointmentPage query(AppointmentQuery q) {
+            awaitLoaded();
+            long started = System.nanoTime();
+            try {
+                if (q.patientId != 0) {
+                    synchronized (this) {
+                        return queryIndexed(byPatient.get(q.patientId), q);
+                    }
+                }
+                if (q.doctorId != 0 && q.fromDay == q.toDay) {
+                    synchronized (this) {
+                        return queryIndexed(byDoctorDay.get(scheduleKey(q.doctorId, q.fromDay)), q);
+                    }
+                }
+                if (q.doctorId != 0 && (long) q.toDay - q.fromDay < MAX_INDEXED_DAYS) {
+                    synchronized (this) {
+                        return queryIndexed(doctorDays(q), q);
+                    }
+                }
+                List<Appointment> items = new ArrayList<>(Math.min(q.limit, 1024));
+                int id = q.afterId;
+                while (true) {
+                    synchronized (this) {
+                        int chunkEnd = Math.min(maxId, id + QUERY_CHUNK);
+                        while (id < chunkEnd) {
+                            int next = cache.nextId(id + 1);
+                            if (next < 0 || next > chunkEnd) {
+                                id = chunkEnd;
+                                break;
+                            }
+                            id = next;
+                            Appointment a = cache.get(id);
+                            if (q.matches(a)) {
+                                items.add(a);
+                                if (items.size() == q.limit) return new AppointmentPage(items, id < maxId ? id : 0);
+                            }
+                        }
+                        if (id >= maxId) return new AppointmentPage(items, 0);
+                    }
+                }
+            } finally {
+                QUERY.record(started);
+            }
+        }
+
+        // The doctor's ids after the cursor over [q.fromDay, q.toDay], merged into id order.
+        private IdList doctorDays(AppointmentQuery q) {
+            int[] merged = new int[16];
+            int n = 0;
+            for (long day = q.fromDay; day <= q.toDay; day++) {
+                IdList ids = byDoctorDay.get(scheduleKey(q.doctorId, (int) day));
+                if (ids == null) continue;
+                for (int i = ids.upperBound(q.afterId); i < ids.size(); i++) {
+                    if (n == merged.length) merged = Arrays.copyOf(merged, n * 2);
+                    merged[n++] = ids.get(i);
+                }
+            }
+            Arrays.sort(merged, 0, n);
+            IdList result = new IdList();
+            for (int i = 0; i < n; i++) result.add(merged[i]);
+            return result;
+        }
+
+        private AppointmentPage queryIndexed(IdList ids, AppointmentQuery q) {
+            List<Appointment> items = new ArrayList<>();
+            if (ids == null) return new AppointmentPage(items, 0);
+            for (int i = ids.upperBound(q.afterId); i < ids.size(); i++) {
+                Appointment a = cache.get(ids.get(i));
+                if (q.matches(a)) {
+                    items.add(a);
+                    if (items.size() == q.limit) return new AppointmentPage(items, i + 1 < ids.size() ? a.getId() : 0);
+                }
+            }
+            return new AppointmentPage(items, 0);
+        }
+
+        @Override
+        protected void unindex(Appointment a) {
+            unschedule(a);
+            if (a.isBooked()) countBooked(a.getDoctorId(), -1);
+            unlink(byPatient, byDoctorDay, a);
+        }
+
+        @Override
+        protected void clearIndexes() {
+            schedules.clear();
+            byPatient.clear();
+            byDoctorDay.clear();
+            bookedByDoctor.clear();
+            maxId = 0;
+        }
+    }
+
+    /**
+     * BOOKED intervals of one doctor on one day, kept sorted by start minute in
+     * parallel int arrays. Bookings made through the service never overlap, so
+     * the ends are sorted too and an overlap test is one binary search. Days
+     * loaded with overlapping legacy rows fall back to a linear scan.
+     *
+     * A bitmap with one bit per minute of the day mirrors the intervals, so
+     * isFree answers "is this slot open" with a couple of word tests; the
+     * free-slot search relies on it.
+     */
+    static final class DaySchedule {
+        private static final int MINUTES_PER_DAY = 24 * 60;
+
+        private int[] starts = new int[4];
+        private int[] ends = new int[4];
+        private int[] ids = new int[4];
+        private int size;
+        private boolean overlapping;
+        private final long[] busy = new long[(MINUTES_PER_DAY + 63) / 64];
+
+        public boolean isEmpty() { return size == 0; }
+        public int size() { return size; }
+        public boolean hasOverlaps() { return overlapping; }
+
+        public void add(int id, int start, int end) {
+            if (findOverlap(start, end) >= 0) overlapping = true;
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                ends = Arrays.copyOf(ends, size * 2);
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            int at = lowerBound(start);
+            System.arraycopy(starts, at, starts, at + 1, size - at);
+            System.arraycopy(ends, at, ends, at + 1, size - at);
+            System.arraycopy(ids, at, ids, at + 1, size - at);
+            starts[at] = start;
+            ends[at] = end;
+            ids[at] = id;
+            size++;
+            mark(start, end);
+        }
+
+        // True when no booking covers any minute of [start, end).
+        public boolean isFree(int start, int end) {
+            start = Math.max(0, start);
+            end = Math.min(MINUTES_PER_DAY, end);
+            for (int word = start >>> 6; start < end; word++) {
+                int to = Math.min(end, (word + 1) << 6);
+                if ((busy[word] & rangeMask(start, to)) != 0) return false;
+                start = to;
+            }
+            return true;
+        }
+
+        private void mark(int start, int end) {
+            start = Math.max(0, start);
+            end = Math.min(MINUTES_PER_DAY, end);
+            for (int word = start >>> 6; start < end; word++) {
+                int to = Math.min(end, (word + 1) << 6);
+                busy[word] |= rangeMask(start, to);
+                start = to;
+            }
+        }
+
+        // Bits [from, to) of the 64-minute word holding 'from'; to - from is 1..64.
+        private static long rangeMask(int from, int to) {
+            int n = to - from;
+            return (n == 64 ? -1L : (1L << n) - 1) << (from & 63);
+        }
+
+        public boolean remove(int id, int start) {
+            for (int i = lowerBound(start); i < size && starts[i] == start; i++) {
+                if (ids[i] == id) {
+                    System.arraycopy(starts, i + 1, starts, i, size - i - 1);
+                    System.arraycopy(ends, i + 1, ends, i, size - i - 1);
+                    System.arraycopy(ids, i + 1, ids, i, size - i - 1);
+                    size--;
+                    // Overlapping rows may share minutes, so rebuild rather than clear the range.
+                    Arrays.fill(busy, 0);
+                    for (int j = 0; j < size; j++) mark(starts[j], ends[j]);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // Id of a booking overlapping [start, end), or -1.
+        public int findOverlap(int start, int end) {
+            if (overlapping) {
+                for (int i = 0; i < size && starts[i] < end; i++) {
+                    if (ends[i] > start) return ids[i];
+                }
+                return -1;
+            }
+            int before = lowerBound(end) - 1; // last interval starting before 'end'
+            return before >= 0 && ends[before] > start ? ids[before] : -1;
+        }
+
+        public int nextFree(int from, int length, int dayEnd) {
+            int cursor = from;
+            int i = overlapping ? 0 : firstEndingAfter(from);
+            for (; i < size; i++) {
+                if (starts[i] >= cursor + length) break;
+                if (ends[i] > cursor) cursor = ends[i];
+            }
+            return cursor + length <= dayEnd ? cursor : Appointment.INVALID;
+        }
+
+        // First index whose start is >= value.
+        private int lowerBound(int value) {
+            int lo = 0, hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (starts[mid] < value) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+
+        private int firstEndingAfter(int value) {
+            int lo = 0, hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (ends[mid] <= value) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof DaySchedule)) return false;
+            DaySchedule d = (DaySchedule) o;
+            return size == d.size
+                    && Arrays.equals(starts, 0, size, d.starts, 0, d.size)
+                    && Arrays.equals(ends, 0, size, d.ends, 0, d.size)
+                    && Arrays.equals(ids, 0, size, d.ids, 0, d.size);
+        }
+
+        @Override
+        public int hashCode() {
+            return size;
+        }
+    }
+
+    /**
+     * Exclusive hold on the data files in one directory, taken with an OS file
+     * lock on "hospital.lock" there. Every process that writes the data files
+     * takes it first: a second writer would load a stale copy, hand out ids the
+     * first had already used and overwrite its changes on the next save. The
+     * OS drops the lock when the process ends, however it ends, so there is
+     * never a stale lock to clean up.
+     */
+    static final class DataLock implements Closeable {
+        static final String FILE_NAME = "hospital.lock";
+
+        private final Path dir;
+        private final FileChannel channel;
+
+        private DataLock(Path dir, FileChannel channel) {
+            this.dir = dir;
+            this.channel = channel;
+        }
+
+        // Fails at once, without waiting, when another process holds the lock.
+        static DataLock acquire(Path dir) throws IOException {
+            FileChannel channel = FileChannel.open(dir.resolve(FILE_NAME),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            boolean held = false;
+            try {
+                FileLock lock;
+                try {
+                    lock = channel.tryLock();
+                } catch (OverlappingFileLockException e) {
+                    lock = null; // already held by this process
+                }
+                if (lock == null) {
+                    throw new IOException("the data files in " + dir.toAbsolutePath().normalize()
+                            + " are in use by another process; stop it and try again.");
+                }
+                held = true;
+                return new DataLock(dir, channel);
+            } finally {
+                if (!held) channel.close();
+            }
+        }
+
+        // Path of a data file in the locked directory.
+        String resolve(String fileName) {
+            return dir.resolve(fileName).toString();
+        }
+
+        @Override
+        public void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Closing releases the lock; the OS releases it at exit anyway.
+            }
+        }
+    }
+
+    /**
+     * Lock-free id counter for one entity type. It starts after the larger of
+     * the largest stored id and the high-water mark in "<file>.ids". The mark
+     * is persisted ahead of the ids handed out, ID_BLOCK at a time, so an id
+     * is never issued twice, even after a restart where trailing records had
+     * been removed. The cost is that a restart may skip up to ID_BLOCK ids.
+     */
+    static final class IdAllocator {
+        private static final int ID_BLOCK = 100;
+
+        private final AtomicInteger last = new AtomicInteger();
+        private final String markPath;
+        private volatile int reserved; // persisted high-water mark; ids up to here may be handed out
+
+        IdAllocator(String dataPath) {
+            this.markPath = dataPath + ".ids";
+            try {
+                reserved = Integer.parseInt(Files.readString(Paths.get(markPath)).trim());
+                last.set(reserved);
+            } catch (NoSuchFileException e) {
+                // First run: the stored ids seed the counter.
+            } catch (IOException | NumberFormatException e) {
+                System.out.println("Warning: ignoring unreadable id mark " + markPath + ": " + e.getMessage());
+            }
+        }
+
+        // Raises the counter past an id read from storage.
+        public void observe(int id) {
+            if (id > last.get()) last.accumulateAndGet(id, Math::max);
+        }
+
+        public int peekNext() {
+            return last.get() + 1;
+        }
+
+        public int next() {
+            int id = last.incrementAndGet();
+            if (id > reserved) extend(id);
+            return id;
+        }
+
+        // Reserves n consecutive ids and returns the first.
+        public int reserve(int n) {
+            int first = last.getAndAdd(n) + 1;
+            if (first + n - 1 > reserved) extend(first + n - 1);
+            return first;
+        }
+
+        // Gives back the unused tail [from, to] of a reservation, if nothing was allocated after it.
+        public void release(int from, int to) {
+            if (from <= to) last.compareAndSet(to, from - 1);
+        }
+
+        private synchronized void extend(int upTo) {
+            if (upTo <= reserved) return;
+            int mark = upTo + ID_BLOCK;
+            try {
+                RecordFile.atomicWrite(markPath, ch -> ch.write(ByteBuffer.wrap((mark + "\n").getBytes(StandardCharsets.UTF_8))));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not persist id mark " + markPath + ": " + e.getMessage(), e);
+            }
+            reserved = mark;
+        }
+    }
+
+    /**
+     * Id -> row map over plain arrays. Ids come from IdAllocator and are dense
+     * from 1, so a row costs one array slot: no boxed key, no map entry. Rows
+     * live in chunks of CHUNK ids allocated on first use, which keeps a
+     * sparse or gapped id range cheap.
+     *
+     * The table also hands out immutable point-in-time snapshots. A snapshot
+     * copies only the array of chunk references, and the first write to a
+     * chunk after a snapshot copies that chunk, so a snapshot never sees later
+     * changes and reading it needs no lock; rows must then be immutable
+     * themselves. Not thread-safe; the owning repository holds its lock.
+     */
+    static final class IdTable<T> {
+        private static final int CHUNK_BITS = 12;
+        private static final int CHUNK = 1 << CHUNK_BITS;
+
+        private Object[][] chunks = new Object[0][];
+        // Generation each chunk was last copied in; chunks from an older generation may be shared.
+        private int[] copiedIn = new int[0];
+        private int generation = 1;
+        private int size;
+        private Snapshot<T> latest; // reused until the next change
+
+        @SuppressWarnings("unchecked")
+        public T get(int id) {
+            int c = id >>> CHUNK_BITS;
+            if (id < 0 || c >= chunks.length || chunks[c] == null) return null;
+            return (T) chunks[c][id & (CHUNK - 1)];
+        }
+
+        public int size() {
+            return size;
+        }
+
+        // Stores the row under id, or removes it when row is null; returns the row it replaced.
+        @SuppressWarnings("unchecked")
+        public T set(int id, T row) {
+            if (id < 0) throw new IllegalArgumentException("Negative id: " + id);
+            int c = id >>> CHUNK_BITS;
+            if (c >= chunks.length) {
+                if (row == null) return null;
+                int length = Math.max(c + 1, chunks.length * 2);
+                chunks = Arrays.copyOf(chunks, length);
+                copiedIn = Arrays.copyOf(copiedIn, length);
+            }
+            Object[] chunk = chunks[c];
+            if (chunk == null) {
+                if (row == null) return null;
+                chunk = chunks[c] = new Object[CHUNK];
+                copiedIn[c] = generation;
+            } else if (copiedIn[c] != generation) {
+                chunk = chunks[c] = chunk.clone();
+                copiedIn[c] = generation;
+            }
+            int i = id & (CHUNK - 1);
+            T previous = (T) chunk[i];
+            if (previous == null && row != null) size++;
+            else if (previous != null && row == null) size--;
+            chunk[i] = row;
+            latest = null;
+            return previous;
+        }
+
+        public void clear() {
+            chunks = new Object[0][];
+            copiedIn = new int[0];
+            size = 0;
+            latest = null;
+        }
+
+        interface Entry<T> {
+            void accept(int id, T row);
+        }
+
+        // Rows in id order.
+        @SuppressWarnings("unchecked")
+        public void forEach(Entry<T> action) {
+            for (int c = 0; c < chunks.length; c++) {
+                Object[] chunk = chunks[c];
+                if (chunk == null) continue;
+                for (int i = 0; i < CHUNK; i++) {
+                    if (chunk[i] != null) action.accept((c << CHUNK_BITS) | i, (T) chunk[i]);
+                }
+            }
+        }
+
+        // Smallest id >= from that holds a row, or -1; empty chunks are skipped whole.
+        public int nextId(int from) {
+            int id = Math.max(from, 0);
+            while ((id >>> CHUNK_BITS) < chunks.length) {
+                Object[] chunk = chunks[id >>> CHUNK_BITS];
+                if (chunk == null) id = ((id >>> CHUNK_BITS) + 1) << CHUNK_BITS;
+                else if (chunk[id & (CHUNK - 1)] == null) id++;
+                else return id;
+            }
+            return -1;
+        }
+
+        // Live view of the rows in id order.
+        public Collection<T> values() {
+            return new AbstractCollection<T>() {
+                @Override
+                public int size() {
+                    return size;
+                }
+
+                @Override
+                public Iterator<T> iterator() {
+                    return new Iterator<T>() {
+                        private int next = nextId(0);
+
+                        @Override
+                        public boolean hasNext() {
+                            return next >= 0;
+                        }
+
+                        @Override
+                        public T next() {
+                            if (next < 0) throw new NoSuchElementException();
+                            T row = get(next);
+                            next = nextId(next + 1);
+                            return row;
+                        }
+                    };
+                }
+            };
+        }
+
+        // Equal when both hold equal rows under the same ids, like Map.equals.
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof IdTable) || ((IdTable<?>) o).size != size) return false;
+            IdTable<?> other = (IdTable<?>) o;
+            for (int c = 0; c < chunks.length; c++) {
+                Object[] chunk = chunks[c];
+                if (chunk == null) continue;
+                for (int i = 0; i < CHUNK; i++) {
+                    if (chunk[i] != null && !chunk[i].equals(other.get((c << CHUNK_BITS) | i))) return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = 0;
+            for (int c = 0; c < chunks.length; c++) {
+                Object[] chunk = chunks[c];
+                if (chunk == null) continue;
+                for (int i = 0; i < CHUNK; i++) {
+                    if (chunk[i] != null) h += ((c << CHUNK_BITS) | i) ^ chunk[i].hashCode();
+                }
+            }
+            return h;
+        }
+
+        // O(ids / CHUNK); later writes copy the chunks they touch.
+        public Snapshot<T> snapshot() {
+            if (latest == null) {
+                latest = new Snapshot<>(chunks.clone(), size);
+                generation++;
+            }
+            return latest;
+        }
+
+        static final class Snapshot<T> {
+            private final Object[][] chunks;
+            private final int size;
+
+            private Snapshot(Object[][] chunks, int size) {
+                this.chunks = chunks;
+                this.size = size;
+            }
+
+            public int size() {
+                return size;
+            }
+
+            int chunkCount() {
+                return chunks.length;
+            }
+
+            // Rows of one chunk, null where there is no row; null when the chunk is empty.
+            Object[] chunk(int index) {
+                return chunks[index];
+            }
+
+            @SuppressWarnings("unchecked")
+            public T get(int id) {
+                int c = id >>> CHUNK_BITS;
+                if (id < 0 || c >= chunks.length || chunks[c] == null) return null;
+                return (T) chunks[c][id & (CHUNK - 1)];
+            }
+
+            // Parallel stream over the rows in no particular order, split by chunk.
+            @SuppressWarnings("unchecked")
+            public Stream<T> parallelStream() {
+                return Arrays.stream(chunks).parallel()
+                        .filter(Objects::nonNull)
+                        .flatMap(chunk -> Arrays.stream(chunk).filter(Objects::nonNull))
+                        .map(row -> (T) row);
+            }
+        }
+    }
+
+    /**
+     * Ascending list of appointment ids in a plain int array. Ids are handed
+     * out in increasing order, so add is almost always an append.
+     */
+    static final class IdList {
+        private int[] ids = new int[2];
+        private int size;
+
+        public int size() { return size; }
+        public boolean isEmpty() { return size == 0; }
+        public int get(int index) { return ids[index]; }
+
+        public void add(int id) {
+            if (size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+            int at = size > 0 && ids[size - 1] > id ? upperBound(id) : size;
+            System.arraycopy(ids, at, ids, at + 1, size - at);
+            ids[at] = id;
+            size++;
+        }
+
+        public boolean remove(int id) {
+            int at = upperBound(id) - 1;
+            if (at < 0 || ids[at] != id) return false;
+            System.arraycopy(ids, at + 1, ids, at, size - at - 1);
+            size--;
+            return true;
+        }
+
+        // First index whose id is > value.
+        public int upperBound(int value) {
+            int lo = 0, hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (ids[mid] <= value) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof IdList && Arrays.equals(ids, 0, size, ((IdList) o).ids, 0, ((IdList) o).size);
+        }
+
+        @Override
+        public int hashCode() {
+            return size;
+        }
+    }
+
+    /**
+     * Pipe-delimited record file shared by the repositories.
+     *
+     * In text mode every mutation rewrites the whole file. In journal mode
+     * (-Dhospital.storage=journal) each inserted or updated record is appended
+     * to "<file>.journal" instead, and the journal is folded back into the
+     * snapshot file every JOURNAL_COMPACT_EVERY entries. Journal lines carry a
+     * CRC32 so a torn last line from a crash is detected and ignored on replay.
+     *
+     * Lines that do not parse (say, a date written before dates were checked)
+     * are not loaded, but they are kept and written back unchanged at the top
+     * of every rewrite, so an operator can still fix them by hand.
+     *
+     * Snapshots are never rewritten in place: atomicWrite writes "<file>.tmp",
+     * forces it to disk and renames it over the file. Journal appends return a
+     * ticket, and sync(ticket) returns once that append has been forced. One
+     * caller forces the journal for everyone waiting at that moment, optionally
+     * after a GROUP_COMMIT_MS pause to let more appends join. Failed writes are
+     * thrown as UncheckedIOException.
+     */
+    static class RecordFile<T> {
+        protected static final int LOAD_CHUNK = 65_536;
+        protected final String filePath;
+        protected final String label;
+        private final String journalPath;
+        private final Function<String, T> parser;
+        protected final Function<T, String> formatter;
+        private PrintWriter journal;
+        private volatile FileOutputStream journalOut;
+        private int journalEntries;
+        private boolean journalFailed;
+        // Lines from the last load that did not parse, in file order; see preserved().
+        private final List<String> unreadable = new ArrayList<>();
+
+        // Group commit state: appends issued so far and appends known to be on disk.
+        private final Object syncLock = new Object();
+        private volatile long written;
+        private long durable;
+        private boolean syncing;
+
+        protected final Metrics.Op readOp;
+        protected final Metrics.Op snapshotOp;
+        private final Metrics.Op journalOp;
+        private final Metrics.Op fsyncOp;
+
+        // A RecordStore under -Dhospital.storage=db, otherwise a text file.
+        static <T> RecordFile<T> open(String filePath, String label,
+                                      Function<String, T> parser, Function<T, String> formatter) {
+            return DB_STORAGE ? new RecordStore<>(filePath, label, parser, formatter)
+                    : new RecordFile<>(filePath, label, parser, formatter);
+        }
+
+        /** Body of a file written by atomicWrite. */
+        interface FileBody {
+            void writeTo(FileChannel channel) throws IOException;
+        }
+
+        public RecordFile(String filePath, String label,
+                          Function<String, T> parser, Function<T, String> formatter) {
+            this.filePath = filePath;
+            this.journalPath = filePath + ".journal";
+            this.label = label;
+            this.parser = parser;
+            this.formatter = formatter;
+            this.readOp = Metrics.op("file." + label + ".read");
+            this.snapshotOp = Metrics.op("file." + label + ".snapshot");
+            this.journalOp = Metrics.op("file." + label + ".journal");
+            this.fsyncOp = Metrics.op("file." + label + ".fsync");
+        }
+
+        // Feeds the snapshot and then the journal to the sink; later records replace earlier ones.
+        public void load(Consumer<T> sink) {
+            long started = System.nanoTime();
+            unreadable.clear();
+            try {
+                readSnapshot(sink);
+            } catch (IOException e) {
+                System.out.println("Error reading " + label + " file: " + e.getMessage());
+            }
+            replayJournal(sink);
+            readOp.record(started, new File(filePath).length() + new File(journalPath).length());
+        }
+
+        // Lines are parsed LOAD_CHUNK at a time on the common pool and handed to the sink in file
+        // order, so later lines still replace earlier ones with the same id.
+        protected void readSnapshot(Consumer<T> sink) throws IOException {
+            int skipped = readText(sink, unreadable);
+            if (skipped > 0) {
+                System.out.println("Warning: " + skipped + " unreadable line(s) in " + label
+                        + " file were not loaded; they are kept in the file unchanged.");
+            }
+        }
+
+        // Reads the records as load does without changing anything: no journal repair, no reopened
+        // files, and preserved() still holds the lines from the last load.
+        public void scan(Consumer<T> sink) throws IOException {
+            scanSnapshot(sink);
+            readJournal(sink, new ArrayList<>(), new ArrayList<>());
+        }
+
+        protected void scanSnapshot(Consumer<T> sink) throws IOException {
+            readText(sink, new ArrayList<>());
+        }
+
+        // Parses the text snapshot into the sink, adding lines that do not parse to 'kept'.
+        private int readText(Consumer<T> sink, List<String> kept) throws IOException {
+            int skipped = 0;
+            List<String> lines = new ArrayList<>();
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(filePath), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    line = line.trim();
+                    if (line.isEmpty()) continue;
+                    lines.add(line);
+                    if (lines.size() == LOAD_CHUNK) {
+                        skipped += parseChunk(lines, sink, kept);
+                        lines.clear();
+                    }
+                }
+            }
+            return skipped + parseChunk(lines, sink, kept);
+        }
+
+        @SuppressWarnings("unchecked")
+        protected int parseChunk(List<String> lines, Consumer<T> sink, List<String> kept) {
+            Object[] parsed = new Object[lines.size()];
+            IntStream.range(0, parsed.length).parallel().forEach(i -> parsed[i] = parser.apply(lines.get(i)));
+            int skipped = 0;
+            for (int i = 0; i < parsed.length; i++) {
+                if (parsed[i] != null) {
+                    sink.accept((T) parsed[i]);
+                } else {
+                    kept.add(lines.get(i));
+                    skipped++;
+                }
+            }
+            return skipped;
+        }
+
+        // Lines that did not parse on the last load; every rewrite keeps them.
+        protected List<String> preserved() {
+            return unreadable;
+        }
+
+        // Largest id at the start of an unreadable line, so new records never reuse it; 0 if none.
+        public int highestPreservedId() {
+            int highest = 0;
+            for (String line : unreadable) highest = Math.max(highest, idOf(line));
+            return highest;
+        }
+
+        // Leading id field of a record line, or 0 when it is not a number.
+        protected static int idOf(String line) {
+            try {
+                return new FieldReader(line).nextInt();
+            } catch (IllegalArgumentException e) {
+                return 0;
+            }
+        }
+
+        // Waits for a repository's load and rethrows its failure as it was thrown on the loader.
+        static void await(CompletableFuture<Void> loaded) {
+            try {
+                loaded.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                if (e.getCause() instanceof Error) throw (Error) e.getCause();
+                throw e;
+            }
+        }
+
+        protected void writeSnapshot(Collection<T> all) throws IOException {
+            atomicWrite(filePath, ch -> {
+                PrintWriter pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(ch), StandardCharsets.UTF_8)));
+                for (String line : unreadable) {
+                    pw.println(line);
+                }
+                for (T record : all) {
+                    pw.println(formatter.apply(record));
+                }
+                pw.flush();
+                if (pw.checkError()) throw new IOException("write failed");
+            });
+        }
+
+        // Writes the file as "<target>.tmp", forces it and renames it over the target, so a crash
+        // leaves either the complete old file or the complete new one (see recoverTempFile).
+        static void atomicWrite(String target, FileBody body) throws IOException {
+            Path path = Paths.get(target).toAbsolutePath();
+            Path tmp = Paths.get(target + ".tmp").toAbsolutePath();
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                body.writeTo(ch);
+                ch.force(true);
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(tmp);
+                throw e;
+            }
+            try {
+                Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+            // The rename itself is only durable once the directory entry is flushed.
+            try (FileChannel dir = FileChannel.open(path.getParent(), StandardOpenOption.READ)) {
+                dir.force(true);
+            } catch (IOException e) {
+                // Not supported on every platform (e.g. Windows); the rename is still atomic.
+            }
+        }
+
+        // A "<file>.tmp" is only renamed once complete, so one left behind by a crash is an
+        // unfinished write: drop it if the file exists, otherwise keep it aside for inspection.
+        static void recoverTempFile(String target) throws IOException {
+            Path tmp = Paths.get(target + ".tmp");
+            if (!Files.exists(tmp)) return;
+            if (Files.exists(Paths.get(target))) {
+                Files.delete(tmp);
+                System.out.println("Recovered " + target + ": discarded an unfinished write (" + tmp + ").");
+            } else {
+                Path aside = Paths.get(target + ".recovered");
+                Files.move(tmp, aside, StandardCopyOption.REPLACE_EXISTING);
+                System.out.println("Warning: " + target + " was missing; its unfinished write was kept as " + aside + ".");
+            }
+        }
+
+        private void replayJournal(Consumer<T> sink) {
+            List<String> valid = new ArrayList<>();
+            boolean torn = readJournal(sink, unreadable, valid);
+            journalEntries = valid.size();
+            if (torn) {
+                // Cut the damaged tail off so later appends are not hidden behind it.
+                System.out.println("Warning: ignoring incomplete " + label + " journal tail.");
+                try {
+                    atomicWrite(journalPath, ch -> {
+                        PrintWriter pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(ch), StandardCharsets.UTF_8)));
+                        for (String line : valid) {
+                            pw.println(line);
+                        }
+                        pw.flush();
+                        if (pw.checkError()) throw new IOException("write failed");
+                    });
+                } catch (IOException e) {
+                    System.out.println("Error repairing " + label + " journal: " + e.getMessage());
+                }
+            }
+        }
+
+        // Feeds the journal's intact entries to the sink and collects their lines in 'valid';
+        // returns true when it stopped at a damaged tail.
+        private boolean readJournal(Consumer<T> sink, List<String> kept, List<String> valid) {
+            File f = new File(journalPath);
+            if (!f.exists()) return false;
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8))) {
+                String line;
+                int lineNumber = 0;
+                while ((line = br.readLine()) != null) {
+                    lineNumber++;
+                    if (line.isEmpty()) continue;
+                    int sep = line.indexOf(' ');
+                    String body = sep < 0 ? "" : line.substring(sep + 1);
+                    if (sep < 0 || !line.substring(0, sep).equals(checksum(body))) {
+                        // Only a torn last append may be dropped; entries after it mean real damage.
+                        while ((line = br.readLine()) != null) {
+                            if (!line.isEmpty()) throw damaged(journalPath, "line " + lineNumber);
+                        }
+                        return true;
+                    }
+                    T record = parser.apply(body);
+                    if (record != null) sink.accept(record);
+                    else kept.add(body);
+                    valid.add(line);
+                }
+            } catch (IOException e) {
+                System.out.println("Error reading " + label + " journal: " + e.getMessage());
+            }
+            return false;
+        }
+
+        // A damaged record with intact data after it is not a torn last write, and cutting it off
+        // would lose that data, so loading stops instead.
+        static UncheckedIOException damaged(String path, String where) {
+            String message = path + ": damaged record at " + where + " is followed by more data; refusing to load it."
+                    + " Restore the file from a backup or remove the damaged record by hand.";
+            return new UncheckedIOException(message, new IOException(message));
+        }
+
+        // Persists one inserted or changed record; 'all' is only written out when a full rewrite is due.
+        // Called under the repository lock; pass the returned ticket to sync() after releasing it.
+        public long append(T record, Collection<T> all) {
+            if (!JOURNALED || journalFailed || journalEntries + 1 >= JOURNAL_COMPACT_EVERY) {
+                writeAll(all);
+                return 0;
+            }
+            try {
+                if (journal == null) {
+                    journalOut = new FileOutputStream(journalPath, true);
+                    journal = new PrintWriter(new BufferedWriter(new OutputStreamWriter(journalOut, StandardCharsets.UTF_8)));
+                }
+                long started = System.nanoTime();
+                String body = formatter.apply(record);
+                String line = checksum(body) + " " + body;
+                journal.println(line);
+                journal.flush();
+                if (journal.checkError()) throw new IOException("write failed");
+                journalEntries++;
+                journalOp.record(started, line.length() + 1);
+                return nextTicket();
+            } catch (IOException e) {
+                // A partial line would hide every later append on replay, so the next change rewrites the snapshot.
+                journalFailed = true;
+                closeJournal();
+                throw new UncheckedIOException("Could not write " + label + " journal: " + e.getMessage(), e);
+            }
+        }
+
+        // Blocks until the append with this ticket has been forced to disk (ticket 0: already durable).
+        public void sync(long ticket) {
+            if (ticket == 0) return;
+            boolean interrupted = false;
+            synchronized (syncLock) {
+                while (durable < ticket && syncing) {
+                    try {
+                        syncLock.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (durable >= ticket) {
+                    if (interrupted) Thread.currentThread().interrupt();
+                    return;
+                }
+                syncing = true;
+            }
+            if (GROUP_COMMIT_MS > 0 && !interrupted) {
+                try {
+                    Thread.sleep(GROUP_COMMIT_MS);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            long upTo = written;
+            IOException failure = null;
+            try {
+                long started = System.nanoTime();
+                if (force()) fsyncOp.record(started);
+            } catch (ClosedChannelException e) {
+                // writeAll closed the file after forcing a snapshot that holds these appends.
+            } catch (IOException e) {
+                failure = e;
+            } finally {
+                synchronized (syncLock) {
+                    if (failure == null) durable = Math.max(durable, upTo);
+                    syncing = false;
+                    syncLock.notifyAll();
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+            if (failure != null) {
+                throw new UncheckedIOException("Could not sync " + label + " journal: " + failure.getMessage(), failure);
+            }
+        }
+
+        // Forces the appends that sync() waits for; false when there was nothing to force.
+        protected boolean force() throws IOException {
+            FileOutputStream out = journalOut;
+            if (out == null) return false;
+            out.getChannel().force(false);
+            return true;
+        }
+
+        // Next sync() ticket for an append that is written but not yet forced.
+        protected long nextTicket() {
+            return ++written;
+        }
+
+        // Every append so far is covered by a forced snapshot.
+        protected void markAllDurable() {
+            synchronized (syncLock) {
+                durable = written;
+                syncLock.notifyAll();
+            }
+        }
+
+        // Persists a batch of inserted or changed records; text files rewrite everything.
+        public void appendAll(Collection<T> records, Collection<T> all) {
+            writeAll(all);
+        }
+
+        // Writes a fresh snapshot and discards the journal it supersedes.
+        public void writeAll(Collection<T> all) {
+            long started = System.nanoTime();
+            try {
+                writeSnapshot(all);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not write " + label + " file: " + e.getMessage(), e);
+            }
+            snapshotOp.record(started, new File(filePath).length());
+            closeJournal();
+            new File(journalPath).delete();
+            journalEntries = 0;
+            journalFailed = false;
+            markAllDurable();
+        }
+
+        private void closeJournal() {
+            if (journal != null) {
+                journal.close();
+                journal = null;
+                journalOut = null;
+            }
+        }
+
+        private static String checksum(String body) {
+            CRC32 crc = new CRC32();
+            crc.update(body.getBytes(StandardCharsets.UTF_8));
+            return Long.toHexString(crc.getValue());
+        }
+    }
+
+    /**
+     * Single-file record store selected with -Dhospital.storage=db ("patients.db",
+     * "doctors.db", "appointments.db"). Adding or changing a record writes that
+     * record's cell only, so booking and cancelling no longer rewrite the file.
+     *
+     * Layout: a 16-byte header (magic, version, reserved) followed by cells,
+     * each an id, capacity, length and CRC32 (4 bytes each) and 'capacity'
+     * bytes holding the record's text line. Cells leave room for the line to
+     * grow a little, so a status change is rewritten in place; a record that
+     * outgrows its cell moves to the end and the old cell is marked dead (id 0).
+     * The id -> cell index is built by one scan when the store is opened.
+     *
+     * A change that overwrites existing bytes is a transaction with a rollback
+     * journal ("<name>.db-journal"), as in SQLite: the old bytes and the old
+     * file length are written and forced first, then the cells, then the
+     * journal is emptied, which is the commit. A non-empty journal found on
+     * open is played back. New records are only appended, so they skip the
+     * journal: a torn last cell fails its CRC and is cut off on open, and
+     * their fsync is shared through sync(ticket) as with journal appends.
+     *
+     * The first open copies the text file and its journal into the store;
+     * the text files are left in place.
+     */
+    static class RecordStore<T> extends RecordFile<T> {
+        private static final int MAGIC = 0x48534442; // "HSDB"
+        private static final int VERSION = 1;
+        private static final int HEADER_BYTES = 16;
+        private static final int CELL_HEADER_BYTES = 16;
+        // Cell id for kept lines whose first field is not a number; 0 marks a dead cell.
+        private static final int KEPT_LINE = Integer.MIN_VALUE;
+
+        private final String dbPath;
+        private final String rollbackPath;
+        private final Map<Integer, Long> cells = new HashMap<>();
+        private volatile FileChannel db;
+        private long end;
+
+        private final Metrics.Op rowOp;
+        private final Metrics.Op transactionOp;
+
+        public RecordStore(String filePath, String label, Function<String, T> parser, Function<T, String> formatter) {
+            super(filePath, label, parser, formatter);
+            this.dbPath = dbPath(filePath);
+            this.rollbackPath = dbPath + "-journal";
+            this.rowOp = Metrics.op("file." + label + ".row");
+            this.transactionOp = Metrics.op("file." + label + ".transaction");
+        }
+
+        // "patients.txt" -> "patients.db"
+        static String dbPath(String filePath) {
+            int dot = filePath.lastIndexOf('.');
+            return (dot > 0 ? filePath.substring(0, dot) : filePath) + ".db";
+        }
+
+        @Override
+        public void load(Consumer<T> sink) {
+            long started = System.nanoTime();
+            preserved().clear();
+            try {
+                if (!new File(dbPath).exists()) convertTextFile();
+                rollBack();
+                open(sink);
+            } catch (IOException e) {
+                System.out.println("Error reading " + label + " store: " + e.getMessage());
+            }
+            readOp.record(started, end);
+        }
+
+        // Copies the text snapshot and journal line for line, keeping the last line per id.
+        private void convertTextFile() throws IOException {
+            Map<Integer, String> latest = new LinkedHashMap<>();
+            List<String> lines = new ArrayList<>();
+            if (new File(filePath).exists()) {
+                RecordFile<String> text = new RecordFile<>(filePath, label, line -> idOf(line) > 0 ? line : null, line -> line);
+                text.load(line -> latest.put(idOf(line), line));
+                lines.addAll(text.preserved());
+            }
+            lines.addAll(latest.values());
+            rewrite(lines, line -> line);
+            if (!latest.isEmpty()) System.out.println("Converted " + latest.size() + " " + label + " to " + dbPath + ".");
+        }
+
+        private void open(Consumer<T> sink) throws IOException {
+            FileChannel previous = db;
+            db = FileChannel.open(Paths.get(dbPath), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (previous != null) previous.close();
+            cells.clear();
+            long size = db.size();
+            List<String> lines = new ArrayList<>();
+            int[] skipped = {0};
+            long pos = readCells(db, size, (id, at, line) -> {
+                cells.put(id, at);
+                lines.add(line);
+                if (lines.size() == LOAD_CHUNK) {
+                    skipped[0] += parseChunk(lines, sink, preserved());
+                    lines.clear();
+                }
+            });
+            skipped[0] += parseChunk(lines, sink, preserved());
+            if (skipped[0] > 0) {
+                System.out.println("Warning: " + skipped[0] + " unreadable record(s) in " + label
+                        + " store were not loaded; they are kept in the store unchanged.");
+            }
+            if (pos < size) {
+                System.out.println("Warning: ignoring incomplete " + label + " store tail.");
+                db.truncate(pos);
+            }
+            end = pos;
+        }
+
+        // Reads the live cells on a channel of its own, leaving the open store and its index alone.
+        @Override
+        public void scan(Consumer<T> sink) throws IOException {
+            try (FileChannel ch = FileChannel.open(Paths.get(dbPath), StandardOpenOption.READ)) {
+                List<String> lines = new ArrayList<>();
+                readCells(ch, Math.min(end, ch.size()), (id, at, line) -> {
+                    lines.add(line);
+                    if (lines.size() == LOAD_CHUNK) {
+                        parseChunk(lines, sink, new ArrayList<>());
+                        lines.clear();
+                    }
+                });
+                parseChunk(lines, sink, new ArrayList<>());
+            }
+        }
+
+        interface CellVisitor {
+            void visit(int id, long at, String line) throws IOException;
+        }
+
+        // Walks the cells in [HEADER_BYTES, size) from the channel's position, handing each live one
+        // to the visitor; returns the offset where the first damaged or incomplete cell starts.
+        private long readCells(FileChannel ch, long size, CellVisitor visitor) throws IOException {
+            ch.position(0);
+            // Not closed, since that would close the channel.
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(ch), 1 << 16));
+            if (size < HEADER_BYTES || in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(dbPath + " is not a record store");
+            }
+            in.skipNBytes(HEADER_BYTES - 8);
+            long pos = HEADER_BYTES;
+            while (size - pos >= CELL_HEADER_BYTES) {
+                int id = in.readInt();
+                int capacity = in.readInt();
+                int length = in.readInt();
+                int crc = in.readInt();
+                // A cell cut short by the end of the file is a torn last write; anything else is damage.
+                if (capacity >= 0 && capacity > size - pos - CELL_HEADER_BYTES) break;
+                if (capacity < 0 || length < 0 || length > capacity) throw damaged(dbPath, "byte " + pos);
+                if (id == 0) {
+                    in.skipNBytes(capacity);
+                } else {
+                    byte[] payload = new byte[capacity];
+                    in.readFully(payload);
+                    if (crc != checksum(id, payload, length)) {
+                        if (pos + CELL_HEADER_BYTES + capacity == size) break;
+                        throw damaged(dbPath, "byte " + pos);
+                    }
+                    visitor.visit(id, pos, new String(payload, 0, length, StandardCharsets.UTF_8));
+                }
+                pos += CELL_HEADER_BYTES + capacity;
+            }
+            return pos;
+        }
+
+        // Called under the repository lock like RecordFile.append; inserts return a ticket for sync(),
+        // transactions are already durable when this returns.
+        @Override
+        public long append(T record, Collection<T> all) {
+            long started = System.nanoTime();
+            try {
+                String line = formatter.apply(record);
+                byte[] payload = line.getBytes(StandardCharsets.UTF_8);
+                Long at = cells.get(idOf(line));
+                if (at == null) {
+                    byte[] cell = cell(idOf(line), payload, capacityFor(payload.length));
+                    write(db, end, cell);
+                    cells.put(idOf(line), end);
+                    end += cell.length;
+                    rowOp.record(started, cell.length);
+                    return nextTicket();
+                }
+                commit(Collections.singletonList(record));
+                rowOp.record(started, payload.length);
+                return 0;
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not write " + label + " store: " + e.getMessage(), e);
+            }
+        }
+
+        // The whole batch is one transaction.
+        @Override
+        public void appendAll(Collection<T> records, Collection<T> all) {
+            try {
+                commit(records);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not write " + label + " store: " + e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public void writeAll(Collection<T> all) {
+            long started = System.nanoTime();
+            try {
+                rewrite(all, formatter);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not write " + label + " store: " + e.getMessage(), e);
+            }
+            snapshotOp.record(started, end);
+            markAllDurable();
+        }
+
+        @Override
+        protected boolean force() throws IOException {
+            FileChannel ch = db;
+            if (ch == null) return false;
+            ch.force(false);
+            return true;
+        }
+
+        // Writes every record in one transaction: in place when the line fits its cell, otherwise
+        // as a new cell at the end with the old one marked dead.
+        private void commit(Collection<T> records) throws IOException {
+            long started = System.nanoTime();
+            // The last line per id wins, as it would on load.
+            Map<Integer, String> lines = new LinkedHashMap<>();
+            for (T record : records) {
+                String line = formatter.apply(record);
+                lines.put(idOf(line), line);
+            }
+            List<Long> offsets = new ArrayList<>();
+            List<byte[]> writes = new ArrayList<>();
+            Map<Integer, Long> moved = new HashMap<>();
+            long newEnd = end;
+            for (Map.Entry<Integer, String> entry : lines.entrySet()) {
+                int id = entry.getKey();
+                byte[] payload = entry.getValue().getBytes(StandardCharsets.UTF_8);
+                Long at = cells.get(id);
+                if (at != null) {
+                    int capacity = readInt(at + 4);
+                    if (payload.length <= capacity) {
+                        offsets.add(at);
+                        writes.add(cell(id, payload, capacity));
+                        continue;
+                    }
+                    offsets.add(at);
+                    writes.add(new byte[4]); // id 0: dead cell
+                }
+                byte[] cell = cell(id, payload, capacityFor(payload.length));
+                offsets.add(newEnd);
+                writes.add(cell);
+                moved.put(id, newEnd);
+                newEnd += cell.length;
+            }
+
+            writeRollbackJournal(offsets, writes);
+            try {
+                for (int i = 0; i < writes.size(); i++) write(db, offsets.get(i), writes.get(i));
+                db.force(false);
+            } catch (IOException e) {
+                try {
+                    rollBack();
+                } catch (IOException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+                throw e;
+            }
+            clearRollbackJournal();
+            cells.putAll(moved);
+            end = newEnd;
+            markAllDurable();
+            transactionOp.record(started, newEnd - HEADER_BYTES);
+        }
+
+        // Saves the bytes each write will overwrite, plus the current length, and forces them.
+        private void writeRollbackJournal(List<Long> offsets, List<byte[]> writes) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeLong(end);
+            for (int i = 0; i < offsets.size(); i++) {
+                long offset = offsets.get(i);
+                if (offset >= end) continue;
+                byte[] before = new byte[(int) Math.min(writes.get(i).length, end - offset)];
+                read(db, offset, before);
+                out.writeLong(offset);
+                out.writeInt(before.length);
+                out.write(before);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+            out.writeLong(crc.getValue());
+            try (FileChannel ch = FileChannel.open(Paths.get(rollbackPath), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                write(ch, 0, bytes.toByteArray());
+                ch.force(true);
+            }
+        }
+
+        // The commit point: an empty journal means there is nothing to undo.
+        private void clearRollbackJournal() throws IOException {
+            try (FileChannel ch = FileChannel.open(Paths.get(rollbackPath), StandardOpenOption.WRITE)) {
+                ch.truncate(0);
+                ch.force(true);
+            }
+        }
+
+        // Undoes a transaction that did not commit. A journal with a bad checksum was never
+        // forced, which means the store had not been touched yet.
+        private void rollBack() throws IOException {
+            Path journal = Paths.get(rollbackPath);
+            if (!Files.exists(journal) || Files.size(journal) == 0) return;
+            ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(journal));
+            CRC32 crc = new CRC32();
+            crc.update(in.array(), 0, Math.max(0, in.limit() - 8));
+            if (in.limit() >= 16 && in.getLong(in.limit() - 8) == crc.getValue()) {
+                try (FileChannel ch = FileChannel.open(Paths.get(dbPath), StandardOpenOption.WRITE)) {
+                    long length = in.getLong();
+                    while (in.position() < in.limit() - 8) {
+                        long offset = in.getLong();
+                        byte[] before = new byte[in.getInt()];
+                        in.get(before);
+                        write(ch, offset, before);
+                    }
+                    ch.truncate(length);
+                    ch.force(true);
+                }
+                System.out.println("Warning: rolled back an unfinished " + label + " transaction.");
+            }
+            clearRollbackJournal();
+        }
+
+        // Rewrites the whole store through atomicWrite and switches to the new file.
+        private <E> void rewrite(Collection<E> items, Function<E, String> text) throws IOException {
+            Map<Integer, Long> written = new HashMap<>();
+            long[] size = {HEADER_BYTES};
+            atomicWrite(dbPath, ch -> {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(ch), 1 << 16));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(0);
+                for (String line : preserved()) size[0] += writeCell(out, line, size[0], written);
+                for (E item : items) size[0] += writeCell(out, text.apply(item), size[0], written);
+                out.flush();
+            });
+            FileChannel previous = db;
+            db = FileChannel.open(Paths.get(dbPath), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (previous != null) previous.close();
+            cells.clear();
+            cells.putAll(written);
+            end = size[0];
+        }
+
+        // Writes the line as a cell at offset 'at' and returns the cell's length.
+        private static int writeCell(DataOutputStream out, String line, long at, Map<Integer, Long> written) throws IOException {
+            byte[] payload = line.getBytes(StandardCharsets.UTF_8);
+            int id = idOf(line) != 0 ? idOf(line) : KEPT_LINE;
+            byte[] cell = cell(id, payload, capacityFor(payload.length));
+            out.write(cell);
+            written.put(id, at);
+            return cell.length;
+        }
+
+        // Room for the line to grow by at least 16 bytes, in 16-byte steps.
+        private static int capacityFor(int length) {
+            return (length + 31) & ~15;
+        }
+
+        private static byte[] cell(int id, byte[] payload, int capacity) {
+            ByteBuffer cell = ByteBuffer.allocate(CELL_HEADER_BYTES + capacity);
+            cell.putInt(id).putInt(capacity).putInt(payload.length).putInt(checksum(id, payload, payload.length));
+            cell.put(payload);
+            return cell.array();
+        }
+
+        private static int checksum(int id, byte[] payload, int length) {
+            CRC32 crc = new CRC32();
+            crc.update(ByteBuffer.allocate(8).putInt(id).putInt(length).array());
+            crc.update(payload, 0, length);
+            return (int) crc.getValue();
+        }
+
+        private int readInt(long offset) throws IOException {
+            byte[] b = new byte[4];
+            read(db, offset, b);
+            return ByteBuffer.wrap(b).getInt();
+        }
+
+        private static void read(FileChannel ch, long offset, byte[] into) throws IOException {
+            ByteBuffer buf = ByteBuffer.wrap(into);
+            while (buf.hasRemaining()) {
+                if (ch.read(buf, offset + buf.position()) < 0) throw new EOFException();
+            }
+        }
+
+        private static void write(FileChannel ch, long offset, byte[] bytes) throws IOException {
+            ByteBuffer buf = ByteBuffer.wrap(bytes);
+            while (buf.hasRemaining()) ch.write(buf, offset + buf.position());
+        }
+    }
+
+    /**
+     * Fixed-width columnar snapshot of the appointment table, selected with
+     * -Dhospital.appointmentFormat=binary (file "appointments.bin").
+     *
+     * Layout: a 16-byte header (magic, version, row count, reserved) followed by
+     * one column after another: id, patientId, doctorId, epochDay and packed
+     * slot (start << 16 | end) as ints, then one status byte per row. Files are
+     * read through a MappedByteBuffer; Columns reads single cells with absolute
+     * gets so the table can be scanned without allocating per row. Changes
+     * still go through the text journal in journal mode.
+     */
+    static class AppointmentBinaryFile extends RecordFile<Appointment> {
+        private static final int MAGIC = 0x48415054; // "HAPT"
+        private static final int VERSION = 1;
+        private static final int HEADER_BYTES = 16;
+        private static final int ROW_BYTES = 5 * 4 + 1;
+
+        public AppointmentBinaryFile(String filePath) {
+            super(filePath, "appointments", Appointment::fromFileString, Appointment::toFileString);
+        }
+
+        @Override
+        protected void readSnapshot(Consumer<Appointment> sink) throws IOException {
+            preserved().addAll(readKept(filePath));
+            Columns table = Columns.map(filePath);
+            int skipped = 0;
+            for (int i = 0; i < table.size(); i++) {
+                Appointment a = table.toAppointment(i);
+                if (a != null) {
+                    sink.accept(a);
+                } else {
+                    preserved().add(table.toLine(i));
+                    skipped++;
+                }
+            }
+            if (skipped > 0) {
+                System.out.println("Warning: " + skipped + " unreadable row(s) in " + filePath
+                        + " were not loaded; they are kept as text in " + keptPath(filePath) + ".");
+            }
+        }
+
+        @Override
+        protected void scanSnapshot(Consumer<Appointment> sink) throws IOException {
+            Columns table = Columns.map(filePath);
+            for (int i = 0; i < table.size(); i++) {
+                Appointment a = table.toAppointment(i);
+                if (a != null) sink.accept(a);
+            }
+        }
+
+        @Override
+        protected void writeSnapshot(Collection<Appointment> all) throws IOException {
+            write(filePath, all);
+            writeKept(filePath, preserved());
+        }
+
+        // Rows the binary format cannot hold (unparseable text lines, rows that did not decode)
+        // live as text lines next to the table.
+        static String keptPath(String binaryPath) {
+            return binaryPath + ".kept";
+        }
+
+        private static List<String> readKept(String binaryPath) throws IOException {
+            Path kept = Paths.get(keptPath(binaryPath));
+            return Files.exists(kept) ? Files.readAllLines(kept, StandardCharsets.UTF_8) : new ArrayList<>();
+        }
+
+        private static void writeKept(String binaryPath, List<String> lines) throws IOException {
+            if (lines.isEmpty()) {
+                Files.deleteIfExists(Paths.get(keptPath(binaryPath)));
+                return;
+            }
+            atomicWrite(keptPath(binaryPath), ch -> writeLines(ch, lines));
+        }
+
+        private static void writeLines(FileChannel ch, List<String> lines) throws IOException {
+            PrintWriter pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(ch), StandardCharsets.UTF_8)));
+            for (String line : lines) {
+                pw.println(line);
+            }
+            pw.flush();
+            if (pw.checkError()) throw new IOException("write failed");
+        }
+
+        public static void write(String path, Collection<Appointment> rows) throws IOException {
+            int n = rows.size();
+            atomicWrite(path, ch -> {
+                long bytes = HEADER_BYTES + (long) n * ROW_BYTES;
+                MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+                buf.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, n).putInt(12, 0);
+                int i = 0;
+                for (Appointment a : rows) {
+                    buf.putInt(Columns.cell(0, n, i), a.getId());
+                    buf.putInt(Columns.cell(1, n, i), a.getPatientId());
+                    buf.putInt(Columns.cell(2, n, i), a.getDoctorId());
+                    buf.putInt(Columns.cell(3, n, i), a.getEpochDay());
+                    buf.putInt(Columns.cell(4, n, i), (a.getStartMinute() << 16) | a.getEndMinute());
+                    buf.put(HEADER_BYTES + 5 * 4 * n + i, (byte) a.getStatus().ordinal());
+                    i++;
+                }
+                buf.force();
+            });
+        }
+
+        // Converts a pipe-delimited appointment file (plus any journal) into the binary format.
+        public static int importText(String textPath, String binaryPath) throws IOException {
+            IdTable<Appointment> rows = new IdTable<>();
+            RecordFile<Appointment> text = new RecordFile<>(textPath, "appointments", Appointment::fromFileString, Appointment::toFileString);
+            text.load(a -> rows.set(a.getId(), a));
+            write(binaryPath, rows.values());
+            writeKept(binaryPath, text.preserved());
+            return rows.size();
+        }
+
+        // Writes a binary appointment file (plus any journal) back out as pipe-delimited text.
+        public static int exportText(String binaryPath, String textPath) throws IOException {
+            IdTable<Appointment> rows = new IdTable<>();
+            AppointmentBinaryFile binary = new AppointmentBinaryFile(binaryPath);
+            binary.load(a -> rows.set(a.getId(), a));
+            List<String> lines = new ArrayList<>(binary.preserved());
+            for (Appointment a : rows.values()) {
+                lines.add(a.toFileString());
+            }
+            atomicWrite(textPath, ch -> writeLines(ch, lines));
+            return rows.size();
+        }
+
+        /** Read-only view over a mapped appointment table. */
+        static final class Columns {
+            private final ByteBuffer buf;
+            private final int n;
+
+            private Columns(ByteBuffer buf, int n) {
+                this.buf = buf;
+                this.n = n;
+            }
+
+            static Columns map(String path) throws IOException {
+                try (FileChannel ch = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+                    if (ch.size() == 0) return new Columns(ByteBuffer.allocate(0), 0);
+                    MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                    if (ch.size() < HEADER_BYTES || buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION) {
+                        throw new IOException(path + " is not a binary appointment file");
+                    }
+                    int n = buf.getInt(8);
+                    if (HEADER_BYTES + (long) n * ROW_BYTES > ch.size()) {
+                        throw new IOException(path + " is truncated");
+                    }
+                    return new Columns(buf, n);
+                }
+            }
+
+            private static int cell(int column, int n, int row) {
+                return HEADER_BYTES + 4 * (column * n + row);
+            }
+
+            public int size() { return n; }
+            public int id(int row) { return buf.getInt(cell(0, n, row)); }
+            public int patientId(int row) { return buf.getInt(cell(1, n, row)); }
+            public int doctorId(int row) { return buf.getInt(cell(2, n, row)); }
+            public int epochDay(int row) { return buf.getInt(cell(3, n, row)); }
+            public int startMinute(int row) { return buf.getInt(cell(4, n, row)) >>> 16; }
+            public int endMinute(int row) { return buf.getInt(cell(4, n, row)) & 0xFFFF; }
+            public int statusOrdinal(int row) { return buf.get(HEADER_BYTES + 5 * 4 * n + row); }
+
+            public Appointment toAppointment(int row) {
+                AppointmentStatus[] statuses = AppointmentStatus.values();
+                int status = statusOrdinal(row);
+                if (status < 0 || status >= statuses.length) return null;
+                if (id(row) < 0 || patientId(row) < 0 || doctorId(row) < 0) return null;
+                return new Appointment(id(row), patientId(row), doctorId(row), epochDay(row),
+                        startMinute(row), endMinute(row), statuses[status]);
+            }
+
+            // The row in the text format as far as it can be rendered, for rows toAppointment rejects.
+            public String toLine(int row) {
+                AppointmentStatus[] statuses = AppointmentStatus.values();
+                int status = statusOrdinal(row);
+                int start = startMinute(row), end = endMinute(row);
+                String slot = start <= 24 * 60 && end <= 24 * 60 ? Appointment.formatTimeSlot(start, end) : start + "-" + end;
+                return id(row) + "|" + patientId(row) + "|" + doctorId(row) + "|" + Appointment.formatDate(epochDay(row))
+                        + "|" + slot + "|" + (status >= 0 && status < statuses.length ? statuses[status].name() : "#" + status);
+            }
+        }
+    }
+
+    // =========================================================
+    // SERVICES (BUSINESS LOGIC)
+    // =========================================================
+
+    /** Rejected service operation; the message is ready to show to the user. */
+    static class ServiceException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        enum Reason { INVALID, NOT_FOUND, CONFLICT }
+
+        private final Reason reason;
+
+        public ServiceException(Reason reason, String message) {
+            super(message);
+            this.reason = reason;
+        }
+
+        public Reason getReason() { return reason; }
+    }
+
+    static class PatientService {
+        private static final Metrics.Op ADD = Metrics.op("service.addPatient");
+        private static final Metrics.Op SEARCH_NAME = Metrics.op("service.searchPatientsByName");
+        private static final Metrics.Op FIND_PHONE = Metrics.op("service.findPatientByPhone");
+
+        private final PatientRepository repository;
+        private final EventBus events;
+
+        public PatientService(PatientRepository repository) {
+            this(repository, EventBus.NONE);
+        }
+
+        public PatientService(PatientRepository repository, EventBus events) {
+            this.repository = repository;
+            this.events = events;
+        }
+
+        public Patient add(String name, int age, String gender, String phone) {
+            long started = System.nanoTime();
+            try {
+                Patient p = new Patient(repository.allocateId(), name, age, gender, phone);
+                repository.add(p);
+                events.publish(ChangeType.PATIENT_ADDED, p);
+                return p;
+            } finally {
+                ADD.record(started);
+            }
+        }
+
+        public Patient find(int id) {
+            return repository.findById(id);
+        }
+
+        public Patient get(int id) {
+            Patient p = repository.findById(id);
+            if (p == null) throw new ServiceException(ServiceException.Reason.NOT_FOUND, "Patient not found.");
+            return p;
+        }
+
+        public List<Patient> list() {
+            return repository.findAll();
+        }
+
+        public List<Patient> searchByName(String prefix, int limit) {
+            long started = System.nanoTime();
+            try {
+                if (prefix.isBlank()) throw new ServiceException(ServiceException.Reason.INVALID, "Name prefix is required.");
+                return repository.findByNamePrefix(prefix, limit);
+            } finally {
+                SEARCH_NAME.record(started);
+            }
+        }
+
+        public List<Patient> findByPhone(String phone) {
+            long started = System.nanoTime();
+            try {
+                if (PatientRepository.phoneKey(phone).isEmpty()) {
+                    throw new ServiceException(ServiceException.Reason.INVALID, "Phone number must contain digits.");
+                }
+                return repository.findByPhone(phone);
+            } finally {
+                FIND_PHONE.record(started);
+            }
+        }
+    }
+
+    static class DoctorService {
+        private static final Metrics.Op ADD = Metrics.op("service.addDoctor");
+
+        private final DoctorRepository repository;
+        private final EventBus events;
+
+        public DoctorService(DoctorRepository repository) {
+            this(repository, EventBus.NONE);
+        }
+
+        public DoctorService(DoctorRepository repository, EventBus events) {
+            this.repository = repository;
+            this.events = events;
+        }
+
+        static WorkingHours workingHours(String days, String window, String slot) {
+            try {
+                return WorkingHours.parse(days, window, slot);
+            } catch (IllegalArgumentException e) {
+                throw new ServiceException(ServiceException.Reason.INVALID, e.getMessage());
+            }
+        }
+
+        public Doctor add(String name, String specialization) {
+            return add(name, specialization, WorkingHours.DEFAULT);
+        }
+
+        public Doctor add(String name, String specialization, WorkingHours hours) {
+            long started = System.nanoTime();
+            try {
+                Doctor d = new Doctor(repository.allocateId(), name, specialization, hours);
+                repository.add(d);
+                events.publish(ChangeType.DOCTOR_ADDED, d);
+                return d;
+            } finally {
+                ADD.record(started);
+            }
+        }
+
+        public Doctor setHours(int doctorId, WorkingHours hours) {
+            Doctor d = get(doctorId).withHours(hours);
+            repository.update(d);
+            return d;
+        }
+
+        public Doctor find(int id) {
+            return repository.findById(id);
+        }
+
+        public Doctor get(int id) {
+            Doctor d = repository.findById(id);
+            if (d == null) throw new ServiceException(ServiceException.Reason.NOT_FOUND, "Doctor not found.");
+            return d;
+        }
+
+        public List<Doctor> list() {
+            return repository.findAll();
+        }
+
+        public List<Doctor> listBySpecialization(String specialization) {
+            return repository.findBySpecialization(specialization);
+        }
+    }
+
+    /**
+     * Booking and cancellation are safe to call from several threads. Each
+     * doctor maps onto one of DOCTOR_LOCK_STRIPES locks, so the conflict check
+     * and the insert happen atomically per doctor while bookings for doctors
+     * on different stripes proceed in parallel.
+     */
+    static class AppointmentService {
+        private static final Metrics.Op BOOK = Metrics.op("service.bookAppointment");
+        private static final Metrics.Op CANCEL = Metrics.op("service.cancelAppointment");
+        private static final Metrics.Op QUERY = Metrics.op("service.queryAppointments");
+        private static final Metrics.Op LIST = Metrics.op("service.listAppointments");
+        private static final Metrics.Op HISTORY = Metrics.op("service.patientHistory");
+        private static final Metrics.Op AGENDA = Metrics.op("service.doctorAgenda");
+        private static final Metrics.Op FREE_SLOTS = Metrics.op("service.findFreeSlots");
+        private static final Metrics.Op ASSIGN = Metrics.op("service.assignDoctor");
+        // How far ahead the free-slot search looks.
+        static final int FREE_SLOT_SEARCH_DAYS = 8 * 7;
+        // Most free slots one search returns.
+        static final int MAX_FREE_SLOTS = 1000;
+
+        private static final int DOCTOR_LOCK_STRIPES = 64;
+
+        private final AppointmentRepository appointmentRepository;
+        private final Repository<Patient> patientRepository;
+        private final DoctorRepository doctorRepository;
+        private final ReentrantLock[] doctorLocks = new ReentrantLock[DOCTOR_LOCK_STRIPES];
+        private final EventBus events;
+
+        public AppointmentService(AppointmentRepository ar,
+                                  Repository<Patient> pr,
+                                  DoctorRepository dr) {
+            this(ar, pr, dr, EventBus.NONE);
+        }
+
+        public AppointmentService(AppointmentRepository ar,
+                                  Repository<Patient> pr,
+                                  DoctorRepository dr,
+                                  EventBus events) {
+            this.appointmentRepository = ar;
+            this.patientRepository = pr;
+            this.doctorRepository = dr;
+            this.events = events;
+            for (int i = 0; i < doctorLocks.length; i++) {
+                doctorLocks[i] = new ReentrantLock();
+            }
+        }
+
+        private ReentrantLock lockFor(int doctorId) {
+            return doctorLocks[Math.floorMod(doctorId, DOCTOR_LOCK_STRIPES)];
+        }
+
+        // Where bookings, cancellations and patient/doctor additions are published; subscribe here.
+        public EventBus events() {
+            return events;
+        }
+
+        public Appointment book(int patientId, int doctorId, int epochDay, int start, int end) {
+            long started = System.nanoTime();
+            try {
+                if (patientRepository.findById(patientId) == null) {
+                    throw new ServiceException(ServiceException.Reason.INVALID, "Invalid patient ID.");
+                }
+                if (doctorRepository.findById(doctorId) == null) {
+                    throw new ServiceException(ServiceException.Reason.INVALID, "Invalid doctor ID.");
+                }
+                if (start < 0 || end > 24 * 60 || start >= end) {
+                    throw new ServiceException(ServiceException.Reason.INVALID,
+                            "Invalid time slot. Use the format HH:MM-HH:MM with start before end.");
+                }
+
+                ReentrantLock lock = lockFor(doctorId);
+                lock.lock();
+                try {
+                    Appointment clash = appointmentRepository.findConflict(doctorId, epochDay, start, end);
+                    if (clash != null) {
+                        String message = "Error: This time slot overlaps appointment " + clash.getId()
+                                + " (" + clash.getTimeSlot() + ") for the selected doctor.";
+                        int next = appointmentRepository.findNextFreeSlot(doctorId, epochDay, start, end - start, 24 * 60);
+                        if (next != Appointment.INVALID) {
+                            message += System.lineSeparator() + "Next free slot that day: "
+                                    + Appointment.formatTimeSlot(next, next + end - start);
+                        }
+                        throw new ServiceException(ServiceException.Reason.CONFLICT, message);
+                    }
+
+                    Appointment appt = new Appointment(appointmentRepository.allocateId(), patientId, doctorId,
+                            epochDay, start, end, AppointmentStatus.BOOKED);
+                    appointmentRepository.add(appt);
+                    // Still under the doctor's lock, so a cancel of this appointment is published after it.
+                    events.publish(ChangeType.APPOINTMENT_BOOKED, appt);
+                    return appt;
+                } finally {
+                    lock.unlock();
+                }
+            } finally {
+                BOOK.record(started);
+            }
+        }
+
+        public Appointment get(int appointmentId) {
+            Appointment a = appointmentRepository.findById(appointmentId);
+            if (a == null) throw new ServiceException(ServiceException.Reason.NOT_FOUND, "Appointment not found.");
+            return a;
+        }
+
+        // Chronological, in time proportional to the patient's own history.
+        public List<Appointment> patientHistory(int patientId) {
+            long started = System.nanoTime();
+            try {
+                if (patientRepository.findById(patientId) == null) {
+                    throw new ServiceException(ServiceException.Reason.NOT_FOUND, "Patient not found.");
+                }
+                List<Appointment> history = appointmentRepository.findByPatient(patientId);
+                history.sort(Comparator.comparingInt(Appointment::getEpochDay).thenComparingInt(Appointment::getStartMinute));
+                return history;
+            } finally {
+                HISTORY.record(started);
+            }
+        }
+
+        // The doctor's appointments that day ordered by start time, cancelled ones included.
+        public List<Appointment> doctorAgenda(int doctorId, int epochDay) {
+            long started = System.nanoTime();
+            try {
+                if (doctorRepository.findById(doctorId) == null) {
+                    throw new ServiceException(ServiceException.Reason.NOT_FOUND, "Doctor not found.");
+                }
+                List<Appointment> agenda = appointmentRepository.findByDoctorDay(doctorId, epochDay);
+                agenda.sort(Comparator.comparingInt(Appointment::getStartMinute));
+                return agenda;
+            } finally {
+                AGENDA.record(started);
+            }
+        }
+
+        // Earliest free slots of one doctor from fromDay onwards.
+        public List<FreeSlot> findFreeSlots(int doctorId, int fromDay, int count) {
+            Doctor d = doctorRepository.findById(doctorId);
+            if (d == null) throw new ServiceException(ServiceException.Reason.NOT_FOUND, "Doctor not found.");
+            return findFreeSlots(Collections.singletonList(d), fromDay, count);
+        }
+
+        // Earliest free slots across every doctor with the specialization (case-insensitive).
+        public List<FreeSlot> findFreeSlots(String specialization, int fromDay, int count) {
+            List<Doctor> matching = doctorRepository.findBySpecialization(specialization);
+            if (matching.isEmpty()) {
+                throw new ServiceException(ServiceException.Reason.NOT_FOUND, "No doctors with specialization " + specialization + ".");
+            }
+            return findFreeSlots(matching, fromDay, count);
+        }
+
+        // Walks the days in order and stops at the first day that completes the list, so the
+        // cost depends on how soon slots are found, not on how many appointments exist.
+        private List<FreeSlot> findFreeSlots(List<Doctor> doctors, int fromDay, int count) {
+            long started = System.nanoTime();
+            try {
+                if (count < 1 || count > MAX_FREE_SLOTS) {
+                    throw new ServiceException(ServiceException.Reason.INVALID,
+                            "Number of slots must be between 1 and " + MAX_FREE_SLOTS + ".");
+                }
+                LocalDateTime now = LocalDateTime.now();
+                int today = (int) now.toLocalDate().toEpochDay();
+                int nowMinute = now.getHour() * 60 + now.getMinute() + 1;
+                List<FreeSlot> result = new ArrayList<>();
+                for (int day = Math.max(fromDay, today); day < Math.max(fromDay, today) + FREE_SLOT_SEARCH_DAYS; day++) {
+                    List<FreeSlot> sameDay = new ArrayList<>();
+                    for (Doctor d : doctors) {
+                        WorkingHours hours = d.getHours();
+                        if (!hours.worksOn(day)) continue;
+                        int[] starts = appointmentRepository.freeSlots(d.getId(), day, hours,
+                                day == today ? nowMinute : 0, count - result.size());
+                        for (int start : starts) sameDay.add(new FreeSlot(d, day, start, start + hours.getSlotMinutes()));
+                    }
+                    sameDay.sort(Comparator.comparingInt((FreeSlot f) -> f.startMinute).thenComparingInt(f -> f.doctor.getId()));
+                    for (FreeSlot slot : sameDay) {
+                        if (result.size() == count) break;
+                        result.add(slot);
+                    }
+                    if (result.size() == count) break;
+                }
+                return result;
+            } finally {
+                FREE_SLOTS.record(started);
+            }
+        }
+
+        // Books the patient into the first free slot of the least-loaded doctor with the
+        // specialization who works that day and still has one. Costs one load lookup and at most
+        // one day's slot scan per doctor in the specialization; appointments are never scanned.
+        public Appointment assign(int patientId, String specialization, int epochDay) {
+            long started = System.nanoTime();
+            try {
+                if (patientRepository.findById(patientId) == null) {
+                    throw new ServiceException(ServiceException.Reason.INVALID, "Invalid patient ID.");
+                }
+                List<Doctor> doctors = doctorRepository.findBySpecialization(specialization);
+                if (doctors.isEmpty()) {
+                    throw new ServiceException(ServiceException.Reason.NOT_FOUND, "No doctors with specialization " + specialization + ".");
+                }
+                Map<Integer, Long> loads = new HashMap<>();
+                List<Doctor> working = new ArrayList<>(doctors.size());
+                for (Doctor d : doctors) {
+                    if (!d.getHours().worksOn(epochDay)) continue;
+                    working.add(d);
+                    loads.put(d.getId(), appointmentRepository.load(d.getId(), epochDay));
+                }
+                // findBySpecialization returns ids ascending and the sort is stable, so ties go to the lower id.
+                working.sort(Comparator.comparingLong(d -> loads.get(d.getId())));
+
+                LocalDateTime now = LocalDateTime.now();
+                int fromMinute = epochDay == now.toLocalDate().toEpochDay() ? now.getHour() * 60 + now.getMinute() + 1 : 0;
+                for (Doctor d : working) {
+                    WorkingHours hours = d.getHours();
+                    // A concurrent booking can take the slot between the scan and book(); rescan and retry.
+                    for (int[] free = appointmentRepository.freeSlots(d.getId(), epochDay, hours, fromMinute, 1);
+                         free.length > 0;
+                         free = appointmentRepository.freeSlots(d.getId(), epochDay, hours, fromMinute, 1)) {
+                        try {
+                            return book(patientId, d.getId(), epochDay, free[0], free[0] + hours.getSlotMinutes());
+                        } catch (ServiceException e) {
+                            if (e.getReason() != ServiceException.Reason.CONFLICT) throw e;
+                        }
+                    }
+                }
+                throw new ServiceException(ServiceException.Reason.CONFLICT, "No " + specialization
+                        + " doctor has a free slot on " + Appointment.formatDate(epochDay) + ".");
+            } finally {
+                ASSIGN.record(started);
+            }
+        }
+
+        public Appointment cancel(int appointmentId) {
+            long started = System.nanoTime();
+            try {
+                Appointment target = appointmentRepository.findById(appointmentId);
+                if (target == null) throw new ServiceException(ServiceException.Reason.NOT_FOUND, "Appointment not found.");
+
+                ReentrantLock lock = lockFor(target.getDoctorId());
+                lock.lock();
+                try {
+                    target = appointmentRepository.findById(appointmentId);
+                    if (target.getStatus() == AppointmentStatus.CANCELLED) {
+                        throw new ServiceException(ServiceException.Reason.CONFLICT, "Appointment is already cancelled.");
+                    }
+                    Appointment cancelled = target.withStatus(AppointmentStatus.CANCELLED);
+                    appointmentRepository.update(cancelled);
+                    events.publish(ChangeType.APPOINTMENT_CANCELLED, cancelled);
+                    return cancelled;
+                } finally {
+                    lock.unlock();
+                }
+            } finally {
+                CANCEL.record(started);
+            }
+        }
+
+        static int requireDate(String text) {
+            int day = Appointment.parseDate(text);
+            if (day == Appointment.INVALID) {
+                throw new ServiceException(ServiceException.Reason.INVALID, "Invalid date. Use the format YYYY-MM-DD.");
+            }
+            return day;
+        }
+
+        public AppointmentPage query(AppointmentQuery q) {
+            long started = System.nanoTime();
+            try {
+                return appointmentRepository.query(q);
+            } finally {
+                QUERY.record(started);
+            }
+        }
+
+        // Streams every match page by page; only one page is held at a time.
+        public void listAppointments(AppointmentQuery q, Writer writer) {
+            long started = System.nanoTime();
+            try {
+                PrintWriter out = new PrintWriter(writer);
+                int pageSize = q.limit;
+                AppointmentPage page;
+                do {
+                    page = appointmentRepository.query(q.limit(pageSize));
+                    writeAppointments(page.items, out);
+                    q.after(page.nextCursor);
+                } while (page.nextCursor != 0);
+                out.flush();
+            } finally {
+                LIST.record(started);
+            }
+        }
+
+        // Names are looked up per row instead of preloading every patient and doctor.
+        void writeAppointments(List<Appointment> items, PrintWriter out) {
+            for (Appointment a : items) {
+                Patient p = patientRepository.findById(a.getPatientId());
+                Doctor d = doctorRepository.findById(a.getDoctorId());
+
+                String pName = (p != null) ? p.getName() : "UnknownPatient(" + a.getPatientId() + ")";
+                String dName = (d != null) ? d.getName() : "UnknownDoctor(" + a.getDoctorId() + ")";
+
+                out.append("ApptID: ").append(Integer.toString(a.getId()))
+                        .append(" | Patient: ").append(pName).append(" (ID:").append(Integer.toString(a.getPatientId()))
+                        .append(") | Doctor: ").append(dName).append(" (ID:").append(Integer.toString(a.getDoctorId()))
+                        .append(") | Date: ").append(a.getDate())
+                        .append(" | Time: ").append(a.getTimeSlot())
+                        .append(" | Status: ").append(a.getStatus().name())
+                        .println();
+            }
+        }
+    }
+
+    /**
+     * Reports over a snapshot of the appointments, computed with parallel
+     * streams outside the repository lock, so bookings go on while a report
+     * runs and a report never sees half of a concurrent change.
+     */
+    static class ReportService {
+        private static final Metrics.Op UTILIZATION = Metrics.op("reports.utilization");
+        private static final Metrics.Op CANCELLATIONS = Metrics.op("reports.cancellations");
+        private static final Metrics.Op SPECIALIZATIONS = Metrics.op("reports.topSpecializations");
+        private static final Metrics.Op DASHBOARD = Metrics.op("reports.monthlyDashboard");
+        // Longest range for the per-doctor, per-day utilization report.
+        static final int MAX_UTILIZATION_DAYS = 366;
+
+        private final AppointmentRepository appointmentRepository;
+        private final Repository<Doctor> doctorRepository;
+
+        public ReportService(AppointmentRepository ar, Repository<Doctor> dr) {
+            this.appointmentRepository = ar;
+            this.doctorRepository = dr;
+        }
+
+        /** BOOKED minutes against the doctor's working-hours template for one day. */
+        static final class Utilization {
+            final Doctor doctor;
+            final int epochDay;
+            final int bookedMinutes;
+            final int workingMinutes;
+
+            Utilization(Doctor doctor, int epochDay, int bookedMinutes, int workingMinutes) {
+                this.doctor = doctor;
+                this.epochDay = epochDay;
+                this.bookedMinutes = bookedMinutes;
+                this.workingMinutes = workingMinutes;
+            }
+
+            // Percentage of the working day booked, NaN on a day off. Bookings outside the template can
+            // push it past 100.
+            double percent() {
+                return workingMinutes == 0 ? Double.NaN : 100.0 * bookedMinutes / workingMinutes;
+            }
+        }
+
+        static final class DailyCancellations {
+            final int epochDay;
+            final long appointments;
+            final long cancelled;
+
+            DailyCancellations(int epochDay, long appointments, long cancelled) {
+                this.epochDay = epochDay;
+                this.appointments = appointments;
+                this.cancelled = cancelled;
+            }
+
+            double percent() {
+                return 100.0 * cancelled / appointments;
+            }
+        }
+
+        static final class SpecializationCount {
+            final String specialization;
+            final long booked;
+
+            SpecializationCount(String specialization, long booked) {
+                this.specialization = specialization;
+                this.booked = booked;
+            }
+        }
+
+        static final class DoctorActivity {
+            final int doctorId;
+            final String doctorName;
+            final long appointments;
+            final long cancelled;
+
+            DoctorActivity(int doctorId, String doctorName, long appointments, long cancelled) {
+                this.doctorId = doctorId;
+                this.doctorName = doctorName;
+                this.appointments = appointments;
+                this.cancelled = cancelled;
+            }
+
+            double cancelPercent() {
+                return 100.0 * cancelled / appointments;
+            }
+        }
+
+        /** One month of activity: totals, per doctor, per specialization and BOOKED starts per hour. */
+        static final class Dashboard {
+            final YearMonth month;
+            final long appointments;
+            final long cancelled;
+            final List<DoctorActivity> doctors;               // most appointments first
+            final List<SpecializationCount> specializations;  // most booked first
+            final long[] bookedByHour;                        // index = hour the appointment starts
+
+            Dashboard(YearMonth month, long appointments, long cancelled, List<DoctorActivity> doctors,
+                      List<SpecializationCount> specializations, long[] bookedByHour) {
+                this.month = month;
+                this.appointments = appointments;
+                this.cancelled = cancelled;
+                this.doctors = doctors;
+                this.specializations = specializations;
+                this.bookedByHour = bookedByHour;
+            }
+
+            // NaN for a month without appointments.
+            double cancelPercent() {
+                return appointments == 0 ? Double.NaN : 100.0 * cancelled / appointments;
+            }
+
+            // Hours with bookings, busiest first.
+            int[] busiestHours(int limit) {
+                IntCounts hours = new IntCounts();
+                for (int h = 0; h < bookedByHour.length; h++) hours.add(h, bookedByHour[h]);
+                return hours.top(limit);
+            }
+        }
+
+        // One row per doctor per day in [fromDay, toDay] that the doctor works or has bookings on.
+        public List<Utilization> utilization(int fromDay, int toDay) {
+            long started = System.nanoTime();
+            try {
+                if (toDay < fromDay || toDay - fromDay >= MAX_UTILIZATION_DAYS) {
+                    throw new ServiceException(ServiceException.Reason.INVALID,
+                            "Utilization covers 1 to " + MAX_UTILIZATION_DAYS + " days.");
+                }
+                List<Doctor> doctors = doctorRepository.findAll();
+                Map<Long, Integer> booked = appointmentRepository.snapshot().parallelStream()
+                        .filter(a -> a.isBooked() && a.getEpochDay() >= fromDay && a.getEpochDay() <= toDay)
+                        .collect(Collectors.groupingByConcurrent(
+                                a -> AppointmentRepository.scheduleKey(a.getDoctorId(), a.getEpochDay()),
+                                Collectors.summingInt(a -> a.getEndMinute() - a.getStartMinute())));
+                List<Utilization> result = new ArrayList<>();
+                for (int day = fromDay; day <= toDay; day++) {
+                    for (Doctor d : doctors) {
+                        WorkingHours h = d.getHours();
+                        int working = h.worksOn(day) ? h.getEndMinute() - h.getStartMinute() : 0;
+                        int minutes = booked.getOrDefault(AppointmentRepository.scheduleKey(d.getId(), day), 0);
+                        if (working > 0 || minutes > 0) result.add(new Utilization(d, day, minutes, working));
+                    }
+                }
+                return result;
+            } finally {
+                UTILIZATION.record(started);
+            }
+        }
+
+        // Appointments and cancellations per date in [fromDay, toDay], dates without appointments left out.
+        public List<DailyCancellations> cancellationsByDate(int fromDay, int toDay) {
+            long started = System.nanoTime();
+            try {
+                Map<Integer, Map<Boolean, Long>> byDay = appointmentRepository.snapshot().parallelStream()
+                        .filter(a -> a.getEpochDay() >= fromDay && a.getEpochDay() <= toDay)
+                        .collect(Collectors.groupingByConcurrent(Appointment::getEpochDay,
+                                Collectors.partitioningBy(a -> !a.isBooked(), Collectors.counting())));
+                List<DailyCancellations> result = new ArrayList<>(byDay.size());
+                for (Map.Entry<Integer, Map<Boolean, Long>> e : new TreeMap<>(byDay).entrySet()) {
+                    long cancelled = e.getValue().get(true);
+                    result.add(new DailyCancellations(e.getKey(), cancelled + e.getValue().get(false), cancelled));
+                }
+                return result;
+            } finally {
+                CANCELLATIONS.record(started);
+            }
+        }
+
+        // Specializations by BOOKED appointments in [fromDay, toDay], most booked first. Spellings that
+        // differ only in case count together under the lowest-id doctor's spelling.
+        public List<SpecializationCount> topSpecializations(int fromDay, int toDay, int limit) {
+            long started = System.nanoTime();
+            try {
+                // Count per doctor first; there are far fewer doctors than appointments.
+                IntCounts perDoctor = Analytics.of(appointmentRepository.snapshot())
+                        .where(Analytics.BOOKED.and(Analytics.between(fromDay, toDay)))
+                        .countBy(Analytics.DOCTOR);
+                return bySpecialization(perDoctor, limit);
+            } finally {
+                SPECIALIZATIONS.record(started);
+            }
+        }
+
+        private List<SpecializationCount> bySpecialization(IntCounts perDoctor, int limit) {
+            Map<String, String> spelling = new HashMap<>();
+            for (Doctor d : doctorRepository.findAll()) {
+                spelling.putIfAbsent(DoctorRepository.specializationKey(d.getSpecialization()), d.getSpecialization().trim());
+            }
+            Map<String, Long> counts = new HashMap<>();
+            perDoctor.forEach((doctorId, n) -> {
+                Doctor d = doctorRepository.findById(doctorId);
+                counts.merge(d == null ? "" : DoctorRepository.specializationKey(d.getSpecialization()), n, Long::sum);
+            });
+            return counts.entrySet().stream()
+                    .sorted(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()))
+                    .limit(limit)
+                    .map(e -> new SpecializationCount(spelling.getOrDefault(e.getKey(), "(unknown doctor)"), e.getValue()))
+                    .collect(Collectors.toList());
+        }
+
+        // Two scans of the month: appointments and cancellations per doctor, then BOOKED starts per hour.
+        public Dashboard monthlyDashboard(YearMonth month) {
+            long started = System.nanoTime();
+            try {
+                Analytics inMonth = Analytics.of(appointmentRepository.snapshot()).where(Analytics.between(
+                        (int) month.atDay(1).toEpochDay(), (int) month.atEndOfMonth().toEpochDay()));
+                // The low bit marks cancelled rows so one pass counts both per doctor.
+                IntCounts byDoctorStatus = inMonth.countBy(a -> a.getDoctorId() << 1 | (a.isBooked() ? 0 : 1));
+                long[] byHour = inMonth.where(Analytics.BOOKED).histogram(Analytics.START_MINUTE, 0, 60, 24);
+
+                IntCounts total = new IntCounts();
+                IntCounts cancelled = new IntCounts();
+                IntCounts booked = new IntCounts();
+                byDoctorStatus.forEach((key, n) -> {
+                    total.add(key >> 1, n);
+                    (((key & 1) == 1) ? cancelled : booked).add(key >> 1, n);
+                });
+                List<DoctorActivity> doctors = new ArrayList<>(total.size());
+                for (int doctorId : total.top(total.size())) {
+                    Doctor d = doctorRepository.findById(doctorId);
+                    doctors.add(new DoctorActivity(doctorId, d == null ? "(unknown doctor)" : d.getName(),
+                            total.get(doctorId), cancelled.get(doctorId)));
+                }
+                return new Dashboard(month, total.total(), cancelled.total(), doctors,
+                        bySpecialization(booked, Integer.MAX_VALUE), byHour);
+            } finally {
+                DASHBOARD.record(started);
+            }
+        }
+
+        // "2025-11" -> YearMonth, blank -> this month.
+        static YearMonth requireMonth(String value) {
+            if (value == null || value.isBlank()) return YearMonth.now();
+            try {
+                return YearMonth.parse(value.trim());
+            } catch (DateTimeParseException e) {
+                throw new ServiceException(ServiceException.Reason.INVALID, "Invalid month. Use the format YYYY-MM.");
+            }
+        }
+    }
+
+    // =========================================================
+    // CONSOLE (MENU PROMPTS)
+    // =========================================================
+
+    /**
+     * The interactive menu: prompts for each option's input on the Scanner,
+     * calls the plain service methods with it and prints the result or the
+     * ServiceException message. The services themselves never read input or
+     * print, so the HTTP API and the tests share them unchanged.
+     */
+    static final class Console {
+        private final Scanner scanner;
+        private final PatientService patients;
+        private final DoctorService doctors;
+        private final AppointmentService appointments;
+        private final ReportService reports;
+
+        Console(Scanner scanner, PatientService patients, DoctorService doctors, AppointmentService appointments,
+                ReportService reports) {
+            this.scanner = scanner;
+            this.patients = patients;
+            this.doctors = doctors;
+            this.appointments = appointments;
+            this.reports = reports;
+        }
+
+        void run(String choice) {
+            switch (choice) {
+                case "1":
+                    addPatient();
+                    break;
+                case "2":
+                    listPatients();
+                    break;
+                case "3":
+                    addDoctor();
+                    break;
+                case "4":
+                    listDoctors();
+                    break;
+                case "5":
+                    bookAppointment();
+                    break;
+                case "6":
+                    listAppointments();
+                    break;
+                case "7":
+                    cancelAppointment();
+                    break;
+                case "8":
+                    searchPatients();
+                    break;
+                case "9":
+                    findPatientByPhone();
+                    break;
+                case "10":
+                    showPatientHistory();
+                    break;
+                case "11":
+                    showDoctorAgenda();
+                    break;
+                case "12":
+                case "metrics":
+                    Metrics.print(System.out);
+                    break;
+                case "13":
+                    findFreeSlots();
+                    break;
+                case "14":
+                    setWorkingHours();
+                    break;
+                case "15":
+                    assignDoctor();
+                    break;
+                case "16":
+                    showReports();
+                    break;
+                case "0":
+                    System.out.println("Exiting system. Goodbye.");
+                    break;
+                default:
+                    System.out.println("Invalid choice. Please enter a valid option (0-16).");
+            }
+        }
+
+        private String readLine() {
+            return scanner.nextLine().trim();
+        }
+
+        private void addPatient() {
+            try {
+                System.out.print("Enter patient name: ");
+                String name = readLine();
+                System.out.print("Enter age: ");
+                int age = Integer.parseInt(readLine());
+                System.out.print("Enter gender: ");
+                String gender = readLine();
+                System.out.print("Enter phone number: ");
+                String phone = readLine();
+
+                Patient p = patients.add(name, age, gender, phone);
+                System.out.println("Patient added successfully with ID: " + p.getId());
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid age. Patient not added.");
+            }
+        }
+
+        private void listPatients() {
+            List<Patient> all = patients.list();
+            if (all.isEmpty()) {
+                System.out.println("No patients found.");
+                return;
+            }
+            System.out.println("---- Patient List ----");
+            for (Patient p : all) {
+                System.out.println(p);
+            }
+        }
+
+        private void searchPatients() {
+            System.out.print("Enter start of patient name: ");
+            String prefix = readLine();
+            try {
+                printMatches(patients.searchByName(prefix, 50));
+            } catch (ServiceException e) {
+                System.out.println(e.getMessage());
+            }
+        }
+
+        private void findPatientByPhone() {
+            System.out.print("Enter phone number: ");
+            String phone = readLine();
+            try {
+                printMatches(patients.findByPhone(phone));
+            } catch (ServiceException e) {
+                System.out.println(e.getMessage());
+            }
+        }
+
+        private static void printMatches(List<Patient> matches) {
+            if (matches.isEmpty()) {
+                System.out.println("No matching patients.");
+                return;
+            }
+            System.out.println("---- Matching Patients ----");
+            for (Patient p : matches) {
+                System.out.println(p);
+            }
+        }
+
+        private void addDoctor() {
+            System.out.print("Enter doctor name: ");
+            String name = readLine();
+            System.out.print("Enter specialization: ");
+            String specialization = readLine();
+            try {
+                WorkingHours hours = readWorkingHours(WorkingHours.DEFAULT);
+                Doctor d = doctors.add(name, specialization, hours);
+                System.out.println("Doctor added successfully with ID: " + d.getId());
+            } catch (ServiceException e) {
+                System.out.println(e.getMessage() + " Doctor not added.");
+            }
+        }
+
+        private void listDoctors() {
+            List<Doctor> all = doctors.list();
+            if (all.isEmpty()) {
+                System.out.println("No doctors found.");
+                return;
+            }
+            System.out.println("---- Doctor List ----");
+            for (Doctor d : all) {
+                System.out.println(d);
+            }
+        }
+
+        private void setWorkingHours() {
+            try {
+                System.out.print("Enter doctor ID: ");
+                Doctor d = doctors.get(Integer.parseInt(readLine()));
+                System.out.println("Current hours: " + d.getHours());
+                d = doctors.setHours(d.getId(), readWorkingHours(d.getHours()));
+                System.out.println("Working hours updated: " + d.getHours());
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid doctor ID.");
+            } catch (ServiceException e) {
+                System.out.println(e.getMessage());
+            }
+        }
+
+        // Prompts for each part of the template; Enter keeps the value from 'current'.
+        private WorkingHours readWorkingHours(WorkingHours current) {
+            System.out.print("Working days, 1-7 with Monday = 1 (Enter for " + current.formatDays() + "): ");
+            String days = readLine();
+            String window = Appointment.formatTimeSlot(current.getStartMinute(), current.getEndMinute());
+            System.out.print("Working hours HH:MM-HH:MM (Enter for " + window + "): ");
+            String hours = readLine();
+            System.out.print("Slot length in minutes (Enter for " + current.getSlotMinutes() + "): ");
+            String slot = readLine();
+            return DoctorService.workingHours(days.isEmpty() ? current.formatDays() : days,
+                    hours.isEmpty() ? window : hours,
+                    slot.isEmpty() ? Integer.toString(current.getSlotMinutes()) : slot);
+        }
+
+        private void bookAppointment() {
+            try {
+                System.out.print("Enter patient ID: ");
+                int patientId = Integer.parseInt(readLine());
+                if (patients.find(patientId) == null) {
+                    System.out.println("Invalid patient ID.");
+                    return;
+                }
+
+                System.out.print("Enter doctor ID: ");
+                int doctorId = Integer.parseInt(readLine());
+                if (doctors.find(doctorId) == null) {
+                    System.out.println("Invalid doctor ID.");
+                    return;
+                }
+
+                System.out.print("Enter appointment date (e.g., 2025-11-24): ");
+                int epochDay = Appointment.parseDate(scanner.nextLine());
+                if (epochDay == Appointment.INVALID) {
+                    System.out.println("Invalid date. Use the format YYYY-MM-DD.");
+                    return;
+                }
+                System.out.print("Enter time slot (e.g., 10:00-10:15): ");
+                int slot = Appointment.parseTimeSlot(scanner.nextLine());
+                if (slot == Appointment.INVALID) {
+                    System.out.println("Invalid time slot. Use the format HH:MM-HH:MM with start before end.");
+                    return;
+                }
+
+                Appointment appt = appointments.book(patientId, doctorId, epochDay, slot >>> 16, slot & 0xFFFF);
+                System.out.println("Appointment booked successfully with ID: " + appt.getId());
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid numeric input. Appointment not booked.");
+            } catch (ServiceException e) {
+                System.out.println(e.getMessage());
+            }
+        }
+
+        private void listAppointments() {
+            try {
+                AppointmentQuery q = new AppointmentQuery().limit(20);
+                System.out.print("Filter by doctor ID (Enter for all): ");
+                String v = readLine();
+                if (!v.isEmpty()) q.doctor(Integer.parseInt(v));
+                System.out.print("Filter by patient ID (Enter for all): ");
+                v = readLine();
+                if (!v.isEmpty()) q.patient(Integer.parseInt(v));
+                System.out.print("From date YYYY-MM-DD (Enter for any): ");
+                v = readLine();
+                if (!v.isEmpty()) q.from(AppointmentService.requireDate(v));
+                System.out.print("To date YYYY-MM-DD (Enter for any): ");
+                v = readLine();
+                if (!v.isEmpty()) q.to(AppointmentService.requireDate(v));
+                System.out.print("Status BOOKED/CANCELLED (Enter for any): ");
+                v = readLine();
+                if (!v.isEmpty()) {
+                    q.status(Appointment.parseStatus(v));
+                    if (q.status == null) {
+                        System.out.println("Invalid status.");
+                        return;
+                    }
+                }
+
+                PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out)));
+                boolean any = false;
+                while (true) {
+                    AppointmentPage page = appointments.query(q);
+                    if (!any && page.items.isEmpty()) break;
+                    if (!any) out.println("---- Appointment List ----");
+                    any = true;
+                    appointments.writeAppointments(page.items, out);
+                    out.flush();
+                    if (page.nextCursor == 0) break;
+                    System.out.print("-- Enter for next page, q to stop: ");
+                    if (readLine().equalsIgnoreCase("q")) break;
+                    q.after(page.nextCursor);
+                }
+                if (!any) System.out.println("No appointments found.");
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid numeric input.");
+            } catch (ServiceException e) {
+                System.out.println(e.getMessage());
+            }
+        }
+
+        private void cancelAppointment() {
+            try {
+                System.out.print("Enter appointment ID to cancel: ");
+                int apptId = Integer.parseInt(readLine());
+
+                appointments.cancel(apptId);
+                System.out.println("Appointment cancelled successfully.");
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid appointment ID.");
+            } catch (ServiceException e) {
+                System.out.println(e.getMessage());
+            }
+        }
+
+        private void showPatientHistory() {
+            try {
+                System.out.print("Enter patient ID: ");
+                int patientId = Integer.parseInt(readLine());
+                printAppointments("Appointment History", appointments.patientHistory(patientId));
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid patient ID.");
+            } catch (ServiceException e) {
+                System.out.println(e.getMessage());
+            }
+        }
+
+        private void showDoctorAgenda() {
+            try {
+                System.out.print("Enter doctor ID: ");
+                int doctorId = Integer.parseInt(readLine());
+                System.out.print("Enter date (YYYY-MM-DD): ");
+                int epochDay = AppointmentService.requireDate(readLine());
+                printAppointments("Agenda for " + Appointment.formatDate(epochDay),
+                        appointments.doctorAgenda(doctorId, epochDay));
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid doctor ID.");
+            } catch (ServiceException e) {
+                System.out.println(e.getMessage());
+            }
+        }
+
+        private void printAppointments(String title, List<Appointment> items) {
+            if (items.isEmpty()) {
+                System.out.println("No appointments found.");
+                return;
+            }
+            PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out)));
+            out.println("---- " + title + " ----");
+            appointments.writeAppointments(items, out);
+            out.flush();
+        }
+
+        private void assignDoctor() {
+            try {
+                System.out.print("Enter patient ID: ");
+                int patientId = Integer.parseInt(readLine());
+                System.out.print("Enter specialization: ");
+                String specialization = readLine();
+                System.out.print("Date YYYY-MM-DD (Enter for today): ");
+                String v = readLine();
+                int epochDay = v.isEmpty() ? (int) LocalDate.now().toEpochDay() : AppointmentService.requireDate(v);
+
+                Appointment appt = appointments.assign(patientId, specialization, epochDay);
+                Doctor d = doctors.find(appt.getDoctorId());
+                System.out.println("Appointment booked successfully with ID: " + appt.getId() + " | Doctor: "
+                        + d.getName() + " (ID:" + d.getId() + ") | " + appt.getDate() + " " + appt.getTimeSlot());
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid patient ID.");
+            } catch (ServiceException e) {
+                System.out.println(e.getMessage());
+            }
+        }
+
+        private void findFreeSlots() {
+            try {
+                System.out.print("Enter doctor ID, or a specialization to search all its doctors: ");
+                String who = readLine();
+                System.out.print("From date YYYY-MM-DD (Enter for today): ");
+                String v = readLine();
+                int fromDay = v.isEmpty() ? (int) LocalDate.now().toEpochDay() : AppointmentService.requireDate(v);
+                System.out.print("How many slots (Enter for 5): ");
+                v = readLine();
+                int count = v.isEmpty() ? 5 : Integer.parseInt(v);
+
+                boolean byId = !who.isEmpty() && who.chars().allMatch(Character::isDigit);
+                List<FreeSlot> slots = byId ? appointments.findFreeSlots(Integer.parseInt(who), fromDay, count)
+                        : appointments.findFreeSlots(who, fromDay, count);
+                if (slots.isEmpty()) {
+                    System.out.println("No free slots in the next " + AppointmentService.FREE_SLOT_SEARCH_DAYS / 7 + " weeks.");
+                    return;
+                }
+                System.out.println("---- Free Slots ----");
+                for (int i = 0; i < slots.size(); i++) {
+                    System.out.println((i + 1) + ") " + slots.get(i));
+                }
+
+                System.out.print("Book slot number (Enter to skip): ");
+                v = readLine();
+                if (v.isEmpty()) return;
+                int choice = Integer.parseInt(v);
+                if (choice < 1 || choice > slots.size()) {
+                    System.out.println("Invalid slot number.");
+                    return;
+                }
+                System.out.print("Enter patient ID: ");
+                int patientId = Integer.parseInt(readLine());
+                FreeSlot slot = slots.get(choice - 1);
+                Appointment appt = appointments.book(patientId, slot.doctor.getId(), slot.epochDay, slot.startMinute,
+                        slot.endMinute);
+                System.out.println("Appointment booked successfully with ID: " + appt.getId());
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid numeric input.");
+            } catch (ServiceException e) {
+                System.out.println(e.getMessage());
+            }
+        }
+
+        private void showReports() {
+            try {
+                System.out.print("Report (1 = doctor utilization, 2 = cancellations by date, 3 = top specializations, "
+                        + "4 = monthly dashboard): ");
+                String report = readLine();
+                if (report.equals("4")) {
+                    System.out.print("Month YYYY-MM (Enter for this month): ");
+                    showDashboard(reports.monthlyDashboard(ReportService.requireMonth(scanner.nextLine())));
+                    return;
+                }
+                if (!report.equals("1") && !report.equals("2") && !report.equals("3")) {
+                    System.out.println("Invalid report.");
+                    return;
+                }
+                int today = (int) LocalDate.now().toEpochDay();
+                boolean bounded = report.equals("1");
+                System.out.print("From date YYYY-MM-DD (Enter for " + (bounded ? "today" : "any") + "): ");
+                String v = readLine();
+                int fromDay = !v.isEmpty() ? AppointmentService.requireDate(v) : bounded ? today : Integer.MIN_VALUE;
+                System.out.print("To date YYYY-MM-DD (Enter for " + (bounded ? "a week" : "any") + "): ");
+                v = readLine();
+                int toDay = !v.isEmpty() ? AppointmentService.requireDate(v) : bounded ? fromDay + 6 : Integer.MAX_VALUE;
+
+                switch (report) {
+                    case "1": {
+                        List<ReportService.Utilization> rows = reports.utilization(fromDay, toDay);
+                        if (rows.isEmpty()) {
+                            System.out.println("No working days or bookings in that range.");
+                            return;
+                        }
+                        System.out.println("---- Doctor Utilization ----");
+                        for (ReportService.Utilization u : rows) {
+                            System.out.printf("%s | Doctor: %s (ID:%d) | Booked: %d of %d min | %s%n",
+                                    Appointment.formatDate(u.epochDay), u.doctor.getName(), u.doctor.getId(),
+                                    u.bookedMinutes, u.workingMinutes,
+                                    u.workingMinutes == 0 ? "day off" : String.format("%.1f%%", u.percent()));
+                        }
+                        break;
+                    }
+                    case "2": {
+                        List<ReportService.DailyCancellations> rows = reports.cancellationsByDate(fromDay, toDay);
+                        if (rows.isEmpty()) {
+                            System.out.println("No appointments found.");
+                            return;
+                        }
+                        System.out.println("---- Cancellations by Date ----");
+                        for (ReportService.DailyCancellations c : rows) {
+                            System.out.printf("%s | Appointments: %d | Cancelled: %d | %.1f%%%n",
+                                    Appointment.formatDate(c.epochDay), c.appointments, c.cancelled, c.percent());
+                        }
+                        break;
+                    }
+                    default: {
+                        List<ReportService.SpecializationCount> rows = reports.topSpecializations(fromDay, toDay, 10);
+                        if (rows.isEmpty()) {
+                            System.out.println("No booked appointments found.");
+                            return;
+                        }
+                        System.out.println("---- Top Specializations ----");
+                        for (int i = 0; i < rows.size(); i++) {
+                            System.out.println((i + 1) + ") " + rows.get(i).specialization + " | Booked: " + rows.get(i).booked);
+                        }
+                    }
+                }
+            } catch (ServiceException e) {
+                System.out.println(e.getMessage());
+            }
+        }
+
+        private static void showDashboard(ReportService.Dashboard d) {
+            System.out.println("---- Dashboard " + d.month + " ----");
+            if (d.appointments == 0) {
+                System.out.println("No appointments found.");
+                return;
+            }
+            System.out.printf("Appointments: %d | Cancelled: %d | %.1f%%%n", d.appointments, d.cancelled, d.cancelPercent());
+            System.out.println("Per doctor:");
+            for (ReportService.DoctorActivity a : d.doctors) {
+                System.out.printf("  %s (ID:%d) | Appointments: %d | Cancelled: %d | %.1f%%%n",
+                        a.doctorName, a.doctorId, a.appointments, a.cancelled, a.cancelPercent());
+            }
+            System.out.println("Per specialization (booked):");
+            for (ReportService.SpecializationCount c : d.specializations) {
+                System.out.println("  " + c.specialization + " | " + c.booked);
+            }
+            System.out.println("Busiest hours (booked):");
+            for (int hour : d.busiestHours(5)) {
+                System.out.printf("  %02d:00 | %d%n", hour, d.bookedByHour[hour]);
+            }
+        }
+    }
+
+    // =========================================================
+    // BULK IMPORT
+    // =========================================================
+
+    /**
+     * Batch import from CSV, for migrating a clinic in one go.
+     *
+     * The file is read in chunks of CHUNK lines. Each chunk is parsed and
+     * validated in parallel (field formats, referenced patient and doctor
+     * ids); the rows that pass then go through a sequential step, in file
+     * order, that checks slot conflicts against stored and earlier imported
+     * appointments and takes ids from a block reserved per chunk. Nothing is
+     * written until the whole file has been read, and then the repository
+     * is saved with one write. Rejected rows are listed with their line
+     * number and reason in "<file>.rejects". Once saved, every imported row
+     * is published to events.log like the same change made through the menu.
+     *
+     * Columns (a header line is skipped; quoted fields may contain commas):
+     *   patients      name,age,gender,phone
+     *   doctors       name,specialization[,workingDays,workingHours,slotMinutes]
+     *   appointments  patientId,doctorId,date,timeSlot[,status]
+     */
+    static final class BulkImport {
+        private static final int CHUNK = 65_536;
+
+        // Parses and validates one row on a worker thread; throws IllegalArgumentException with the reason.
+        interface RowParser<T> {
+            T parse(String[] fields);
+        }
+
+        // Runs on the importing thread in file order and stores the row under the given id;
+        // throws IllegalArgumentException with the reason.
+        interface RowAcceptor<T> {
+            T accept(T row, int id);
+        }
+
+        private static final class Reject {
+            final String reason;
+
+            Reject(String reason) {
+                this.reason = reason;
+            }
+        }
+
+        private final List<String> rejects = new ArrayList<>();
+        private final EventBus events;
+        private int rows;
+
+        public BulkImport() {
+            this(EventBus.NONE);
+        }
+
+        public BulkImport(EventBus events) {
+            this.events = events;
+        }
+
+        public static void main(DataLock lock, String kind, Path csv) throws IOException {
+            long started = System.nanoTime();
+            EventBus events = EventBus.open(lock);
+            BulkImport job = new BulkImport(events);
+            try {
+                int imported;
+                String target;
+                switch (kind) {
+                    case "patients":
+                        target = PATIENT_FILE;
+                        imported = job.importPatients(new PatientRepository(PATIENT_FILE), csv);
+                        break;
+                    case "doctors":
+                        target = DOCTOR_FILE;
+                        imported = job.importDoctors(new DoctorRepository(DOCTOR_FILE), csv);
+                        break;
+                    case "appointments":
+                        target = BINARY_APPOINTMENTS ? APPOINTMENT_BINARY_FILE : APPOINTMENT_FILE;
+                        imported = job.importAppointments(new AppointmentRepository(target),
+                                storedIds(PATIENT_FILE, "patients"), storedIds(DOCTOR_FILE, "doctors"), csv);
+                        break;
+                    default:
+                        System.out.println("Unknown import type: " + kind + " (expected patients, doctors or appointments)");
+                        return;
+                }
+                if (DB_STORAGE && !target.endsWith(".bin")) target = RecordStore.dbPath(target);
+                System.out.printf("Imported %d of %d rows from %s into %s in %d ms.%n",
+                        imported, job.rows, csv, target, (System.nanoTime() - started) / 1_000_000);
+                job.reportRejects(csv);
+            } finally {
+                events.close();
+            }
+        }
+
+        public int importPatients(PatientRepository repository, Path csv) throws IOException {
+            List<Patient> accepted = run(csv, "name", repository.ids, f -> {
+                expectColumns(f, 4, 4);
+                int age = intField(f, 1, "age");
+                if (age < 0 || age > 150) throw new IllegalArgumentException("Invalid age: " + age);
+                return new Patient(0, textField(f, 0, "name"), age, textField(f, 2, "gender"), textField(f, 3, "phone"));
+            }, (p, id) -> new Patient(id, p.getName(), p.getAge(), p.getGender(), p.getPhone()));
+            repository.addAll(accepted);
+            for (Patient p : accepted) events.publish(ChangeType.PATIENT_ADDED, p);
+            return accepted.size();
+        }
+
+        public int importDoctors(DoctorRepository repository, Path csv) throws IOException {
+            List<Doctor> accepted = run(csv, "name", repository.ids, f -> {
+                expectColumns(f, 2, 5);
+                WorkingHours hours = WorkingHours.DEFAULT;
+                if (f.length > 2) {
+                    expectColumns(f, 5, 5);
+                    hours = WorkingHours.parse(f[2].trim(), f[3].trim(), f[4].trim());
+                }
+                return new Doctor(0, textField(f, 0, "name"), textField(f, 1, "specialization"), hours);
+            }, (d, id) -> d.withId(id));
+            repository.addAll(accepted);
+            for (Doctor d : accepted) events.publish(ChangeType.DOCTOR_ADDED, d);
+            return accepted.size();
+        }
+
+        // patientIds and doctorIds are the ids an appointment may refer to.
+        public int importAppointments(AppointmentRepository repository, BitSet patientIds, BitSet doctorIds,
+                                      Path csv) throws IOException {
+            // Bookings accepted so far in this import, per (doctorId, epochDay).
+            Map<Long, DaySchedule> batch = new HashMap<>();
+
+            List<Appointment> accepted = run(csv, "patientId", repository.ids, f -> {
+                expectColumns(f, 4, 5);
+                int patientId = intField(f, 0, "patient ID");
+                if (patientId <= 0 || !patientIds.get(patientId)) {
+                    throw new IllegalArgumentException("Unknown patient ID: " + patientId);
+                }
+                int doctorId = intField(f, 1, "doctor ID");
+                if (doctorId <= 0 || !doctorIds.get(doctorId)) {
+                    throw new IllegalArgumentException("Unknown doctor ID: " + doctorId);
+                }
+                int epochDay = Appointment.parseDate(f[2].trim());
+                if (epochDay == Appointment.INVALID) throw new IllegalArgumentException("Invalid date: " + f[2]);
+                int slot = Appointment.parseTimeSlot(f[3].trim());
+                if (slot == Appointment.INVALID || (slot >>> 16) >= (slot & 0xFFFF)) {
+                    throw new IllegalArgumentException("Invalid time slot: " + f[3]);
+                }
+                AppointmentStatus status = AppointmentStatus.BOOKED;
+                if (f.length > 4 && !f[4].isBlank()) {
+                    status = Appointment.parseStatus(f[4].trim());
+                    if (status == null) throw new IllegalArgumentException("Invalid status: " + f[4]);
+                }
+                return new Appointment(0, patientId, doctorId, epochDay, slot >>> 16, slot & 0xFFFF, status);
+            }, (a, id) -> {
+                DaySchedule day = null;
+                if (a.isBooked()) {
+                    Appointment clash = repository.findConflict(a.getDoctorId(), a.getEpochDay(),
+                            a.getStartMinute(), a.getEndMinute());
+                    if (clash != null) {
+                        throw new IllegalArgumentException("Overlaps stored appointment " + clash.getId()
+                                + " (" + clash.getTimeSlot() + ")");
+                    }
+                    day = batch.computeIfAbsent(AppointmentRepository.scheduleKey(a.getDoctorId(), a.getEpochDay()),
+                            k -> new DaySchedule());
+                    int other = day.findOverlap(a.getStartMinute(), a.getEndMinute());
+                    if (other >= 0) throw new IllegalArgumentException("Overlaps imported appointment " + other);
+                }
+                Appointment stored = new Appointment(id, a.getPatientId(), a.getDoctorId(),
+                        a.getEpochDay(), a.getStartMinute(), a.getEndMinute(), a.getStatus());
+                if (day != null) day.add(stored.getId(), stored.getStartMinute(), stored.getEndMinute());
+                return stored;
+            });
+            repository.addAll(accepted);
+            for (Appointment a : accepted) {
+                events.publish(a.isBooked() ? ChangeType.APPOINTMENT_BOOKED : ChangeType.APPOINTMENT_CANCELLED, a);
+            }
+            return accepted.size();
+        }
+
+        // Ids in a record file and its journal, without building the repository and its indexes.
+        static BitSet storedIds(String filePath, String label) {
+            BitSet ids = new BitSet();
+            RecordFile.<Integer>open(filePath, label, line -> {
+                try {
+                    int id = new FieldReader(line).nextInt();
+                    return id > 0 ? id : null;
+                } catch (IllegalArgumentException e) {
+                    return null;
+                }
+            }, String::valueOf).load(ids::set);
+            return ids;
+        }
+
+        // A header names the first column exactly, so a first row like "Nameeta Shah,..." is data.
+        private static boolean isHeader(String line, String firstColumn) {
+            try {
+                return splitCsv(line)[0].trim().equalsIgnoreCase(firstColumn);
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+        }
+
+        private <T> List<T> run(Path csv, String firstColumn, IdAllocator ids, RowParser<T> parser,
+                                RowAcceptor<T> acceptor) throws IOException {
+            List<T> accepted = new ArrayList<>();
+            try (BufferedReader in = Files.newBufferedReader(csv, StandardCharsets.UTF_8)) {
+                List<String> lines = new ArrayList<>(CHUNK);
+                int lineNumber = 1;
+                String line = in.readLine();
+                if (line != null && isHeader(line, firstColumn)) {
+                    line = in.readLine();
+                    lineNumber++;
+                }
+                while (line != null) {
+                    lines.add(line);
+                    line = in.readLine();
+                    if (lines.size() == CHUNK || line == null) {
+                        processChunk(lines, lineNumber, ids, parser, acceptor, accepted);
+                        lineNumber += lines.size();
+                        lines.clear();
+                    }
+                }
+            }
+            return accepted;
+        }
+
+        @SuppressWarnings("unchecked")
+        private <T> void processChunk(List<String> lines, int firstLineNumber, IdAllocator ids, RowParser<T> parser,
+                                      RowAcceptor<T> acceptor, List<T> accepted) {
+            Object[] parsed = new Object[lines.size()];
+            IntStream.range(0, parsed.length).parallel().forEach(i -> {
+                String line = lines.get(i);
+                if (line.isBlank()) return;
+                try {
+                    parsed[i] = parser.parse(splitCsv(line));
+                } catch (IllegalArgumentException e) {
+                    parsed[i] = new Reject(e.getMessage());
+                }
+            });
+            // One id block per chunk, sized for every row that parsed; the unused tail is given back.
+            int candidates = 0;
+            for (Object row : parsed) {
+                if (row != null && !(row instanceof Reject)) candidates++;
+            }
+            int first = candidates > 0 ? ids.reserve(candidates) : 0;
+            int nextId = first;
+            for (int i = 0; i < parsed.length; i++) {
+                if (parsed[i] == null) continue;
+                rows++;
+                if (parsed[i] instanceof Reject) {
+                    rejects.add("line " + (firstLineNumber + i) + ": " + ((Reject) parsed[i]).reason);
+                    continue;
+                }
+                try {
+                    accepted.add(acceptor.accept((T) parsed[i], nextId));
+                    nextId++;
+                } catch (IllegalArgumentException e) {
+                    rejects.add("line " + (firstLineNumber + i) + ": " + e.getMessage());
+                }
+            }
+            if (candidates > 0) ids.release(nextId, first + candidates - 1);
+        }
+
+        private void reportRejects(Path csv) throws IOException {
+            if (rejects.isEmpty()) return;
+            Path report = Paths.get(csv + ".rejects");
+            Files.write(report, rejects, StandardCharsets.UTF_8);
+            System.out.println(rejects.size() + " rows rejected; all reasons are in " + report + ".");
+            for (String r : rejects.subList(0, Math.min(10, rejects.size()))) {
+                System.out.println("  " + r);
+            }
+        }
+
+        private static void expectColumns(String[] fields, int min, int max) {
+            if (fields.length < min || fields.length > max) {
+                throw new IllegalArgumentException("Expected " + (min == max ? min : min + "-" + max)
+                        + " columns, found " + fields.length);
+            }
+        }
+
+        private static int intField(String[] fields, int index, String name) {
+            try {
+                return Integer.parseInt(fields[index].trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid " + name + ": " + fields[index]);
+            }
+        }
+
+        private static String textField(String[] fields, int index, String name) {
+            String value = fields[index].trim();
+            if (value.isEmpty()) throw new IllegalArgumentException("Missing " + name);
+            return value;
+        }
+    }
+
+    // =========================================================
+    // HTTP API
+    // =========================================================
+
+    /**
+     * JSON endpoints over the services, served by the JDK's built-in HttpServer
+     * with one virtual thread per request when the runtime supports them
+     * (Java 21+) and a cached thread pool otherwise.
+     *
+     *   GET  /patients             POST /patients      {name, age, gender, phone}
+     *        ?name=&limit=  or  ?phone=
+     *   GET  /doctors              POST /doctors       {name, specialization[, workingDays, workingHours, slotMinutes]}
+     *        ?specialization=
+     *   GET  /appointments         POST /appointments  {patientId, doctorId, date, timeSlot}
+     *        ?doctorId=&patientId=&from=&to=&status=&after=&limit=  ->  {items, nextCursor}
+     *   GET  /{patients|doctors|appointments}/{id}
+     *   GET  /patients/{id}/appointments
+     *   GET  /doctors/{id}/agenda?date=YYYY-MM-DD
+     *   GET  /doctors/{id}/slots?from=&count=       GET /slots?specialization=&from=&count=
+     *   POST /doctors/{id}/hours   {workingDays, workingHours, slotMinutes}
+     *   POST /appointments/{id}/cancel   (or DELETE /appointments/{id})
+     *   POST /assignments          {patientId, specialization[, date]}  books the least-loaded doctor
+     *   GET  /reports/utilization?from=&to=   /reports/cancellations?from=&to=
+     *   GET  /reports/specializations?from=&to=&limit=
+     *   GET  /reports/dashboard?month=YYYY-MM
+     *
+     * Errors are returned as {"error": message} with 400, 404 or 409, and 503
+     * when the change could not be written to disk.
+     */
+    static class HttpApi {
+        private final PatientService patients;
+        private final DoctorService doctors;
+        private final AppointmentService appointments;
+        private final ReportService reports;
+        private HttpServer server;
+        private ExecutorService executor;
+
+        public HttpApi(PatientService patients, DoctorService doctors, AppointmentService appointments,
+                       ReportService reports) {
+            this.patients = patients;
+            this.doctors = doctors;
+            this.appointments = appointments;
+            this.reports = reports;
+        }
+
+        public InetSocketAddress start(int port) throws IOException {
+            // Without TCP_NODELAY small responses stall on Nagle + delayed ACK (~40 ms per request).
+            if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+                System.setProperty("sun.net.httpserver.nodelay", "true");
+            }
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 4096);
+            executor = requestExecutor();
+            server.setExecutor(executor);
+            server.createContext("/", this::handle);
+            server.start();
+            return server.getAddress();
+        }
+
+        public void stop() {
+            server.stop(0);
+            executor.shutdown();
+        }
+
+        static ExecutorService requestExecutor() {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                return Executors.newCachedThreadPool();
+            }
+        }
+
+        private void handle(HttpExchange exchange) throws IOException {
+            int status;
+            String body;
+            try {
+                String method = exchange.getRequestMethod();
+                String[] path = pathSegments(exchange.getRequestURI().getPath());
+                String text = readBody(exchange);
+                Map<String, String> params = text.isBlank() ? Collections.emptyMap() : Json.parseObject(text);
+                status = "POST".equals(method) && path.length == 1 ? 201 : 200;
+                body = route(exchange, method, path, params);
+            } catch (ServiceException e) {
+                status = e.getReason() == ServiceException.Reason.NOT_FOUND ? 404
+                        : e.getReason() == ServiceException.Reason.CONFLICT ? 409 : 400;
+                body = error(e.getMessage());
+            } catch (IllegalArgumentException e) {
+                status = 400;
+                body = error(e.getMessage());
+            } catch (UncheckedIOException e) {
+                status = 503;
+                body = error("The change was not saved. " + e.getMessage());
+            } catch (RuntimeException e) {
+                status = 500;
+                body = error("Internal error: " + e);
+            }
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+
+        private String route(HttpExchange exchange, String method, String[] path, Map<String, String> params) {
+            String resource = path[0];
+            if (resource.equals("reports") && path.length == 2 && method.equals("GET")) {
+                return report(path[1], queryParams(exchange.getRequestURI().getRawQuery()));
+            }
+            String route = path.length > 3 ? "" : method + " " + resource + (path.length > 1 ? "/id" : "")
+                    + (path.length > 2 ? "/" + path[2] : "");
+            switch (route) {
+                case "GET patients": {
+                    Map<String, String> query = queryParams(exchange.getRequestURI().getRawQuery());
+                    if (query.containsKey("phone")) return array(patients.findByPhone(query.get("phone")), HttpApi::patientJson);
+                    if (query.containsKey("name")) {
+                        int limit = query.containsKey("limit") ? intParam("limit", query.get("limit")) : 100;
+                        return array(patients.searchByName(query.get("name"), Math.max(1, Math.min(1000, limit))),
+                                HttpApi::patientJson);
+                    }
+                    return array(patients.list(), HttpApi::patientJson);
+                }
+                case "GET patients/id":
+                    return patientJson(patients.get(pathId(path)));
+                case "GET patients/id/appointments":
+                    return array(appointments.patientHistory(pathId(path)), this::appointmentJson);
+                case "POST patients":
+                    return patientJson(patients.add(required(params, "name"), intParam("age", required(params, "age")),
+                            required(params, "gender"), required(params, "phone")));
+                case "GET doctors": {
+                    Map<String, String> query = queryParams(exchange.getRequestURI().getRawQuery());
+                    if (query.containsKey("specialization")) {
+                        return array(doctors.listBySpecialization(query.get("specialization")), HttpApi::doctorJson);
+                    }
+                    return array(doctors.list(), HttpApi::doctorJson);
+                }
+                case "GET doctors/id":
+                    return doctorJson(doctors.get(pathId(path)));
+                case "GET doctors/id/agenda": {
+                    Map<String, String> query = queryParams(exchange.getRequestURI().getRawQuery());
+                    return array(appointments.doctorAgenda(pathId(path), dateParam("date", required(query, "date"))),
+                            this::appointmentJson);
+                }
+                case "GET doctors/id/slots": {
+                    Map<String, String> query = queryParams(exchange.getRequestURI().getRawQuery());
+                    return array(appointments.findFreeSlots(pathId(path), fromParam(query), countParam(query)),
+                            HttpApi::slotJson);
+                }
+                case "GET slots": {
+                    Map<String, String> query = queryParams(exchange.getRequestURI().getRawQuery());
+                    return array(appointments.findFreeSlots(required(query, "specialization"), fromParam(query),
+                            countParam(query)), HttpApi::slotJson);
+                }
+                case "POST doctors":
+                    return doctorJson(doctors.add(required(params, "name"), required(params, "specialization"),
+                            workingHours(params, WorkingHours.DEFAULT)));
+                case "POST doctors/id/hours": {
+                    int id = pathId(path);
+                    return doctorJson(doctors.setHours(id, workingHours(params, doctors.get(id).getHours())));
+                }
+                case "GET appointments": {
+                    AppointmentQuery q = new AppointmentQuery().limit(100);
+                    Map<String, String> query = queryParams(exchange.getRequestURI().getRawQuery());
+                    if (query.containsKey("doctorId")) q.doctor(intParam("doctorId", query.get("doctorId")));
+                    if (query.containsKey("patientId")) q.patient(intParam("patientId", query.get("patientId")));
+                    if (query.containsKey("from")) q.from(dateParam("from", query.get("from")));
+                    if (query.containsKey("to")) q.to(dateParam("to", query.get("to")));
+                    if (query.containsKey("after")) q.after(intParam("after", query.get("after")));
+                    if (query.containsKey("limit")) q.limit(Math.max(1, Math.min(1000, intParam("limit", query.get("limit")))));
+                    if (query.containsKey("status")) {
+                        q.status(Appointment.parseStatus(query.get("status")));
+                        if (q.status == null) throw new IllegalArgumentException("Invalid status: " + query.get("status"));
+                    }
+                    AppointmentPage page = appointments.query(q);
+                    return "{\"items\":" + array(page.items, this::appointmentJson) + ",\"nextCursor\":"
+                            + (page.nextCursor == 0 ? "null" : Integer.toString(page.nextCursor)) + "}";
+                }
+                case "GET appointments/id":
+                    return appointmentJson(appointments.get(pathId(path)));
+                case "POST appointments": {
+                    int epochDay = Appointment.parseDate(required(params, "date"));
+                    if (epochDay == Appointment.INVALID) throw new IllegalArgumentException("Invalid date. Use the format YYYY-MM-DD.");
+                    int slot = Appointment.parseTimeSlot(required(params, "timeSlot"));
+                    if (slot == Appointment.INVALID) throw new IllegalArgumentException("Invalid time slot. Use the format HH:MM-HH:MM.");
+                    return appointmentJson(appointments.book(intParam("patientId", required(params, "patientId")),
+                            intParam("doctorId", required(params, "doctorId")), epochDay, slot >>> 16, slot & 0xFFFF));
+                }
+                case "POST assignments":
+                    return appointmentJson(appointments.assign(intParam("patientId", required(params, "patientId")),
+                            required(params, "specialization"), params.containsKey("date")
+                                    ? dateParam("date", params.get("date")) : (int) LocalDate.now().toEpochDay()));
+                case "POST appointments/id/cancel":
+                case "DELETE appointments/id":
+                    return appointmentJson(appointments.cancel(pathId(path)));
+                default:
+                    throw new ServiceException(ServiceException.Reason.NOT_FOUND, "No such endpoint: " + method + " /"
+                            + String.join("/", path));
+            }
+        }
+
+        // The numeric id in /resource/{id}/...; only called once the route is known to have one.
+        private static int pathId(String[] path) {
+            return intParam("id", path[1]);
+        }
+
+        private String report(String name, Map<String, String> query) {
+            int today = (int) LocalDate.now().toEpochDay();
+            switch (name) {
+                case "utilization": {
+                    int from = query.containsKey("from") ? dateParam("from", query.get("from")) : today;
+                    int to = query.containsKey("to") ? dateParam("to", query.get("to")) : from + 6;
+                    return array(reports.utilization(from, to), u -> "{\"doctorId\":" + u.doctor.getId()
+                            + ",\"doctorName\":" + Json.quote(u.doctor.getName())
+                            + ",\"date\":\"" + Appointment.formatDate(u.epochDay) + "\",\"bookedMinutes\":" + u.bookedMinutes
+                            + ",\"workingMinutes\":" + u.workingMinutes + ",\"percent\":" + round1(u.percent()) + "}");
+                }
+                case "cancellations": {
+                    int from = query.containsKey("from") ? dateParam("from", query.get("from")) : Integer.MIN_VALUE;
+                    int to = query.containsKey("to") ? dateParam("to", query.get("to")) : Integer.MAX_VALUE;
+                    return array(reports.cancellationsByDate(from, to), c -> "{\"date\":\"" + Appointment.formatDate(c.epochDay)
+                            + "\",\"appointments\":" + c.appointments + ",\"cancelled\":" + c.cancelled
+                            + ",\"percent\":" + round1(c.percent()) + "}");
+                }
+                case "specializations": {
+                    int from = query.containsKey("from") ? dateParam("from", query.get("from")) : Integer.MIN_VALUE;
+                    int to = query.containsKey("to") ? dateParam("to", query.get("to")) : Integer.MAX_VALUE;
+                    int limit = query.containsKey("limit") ? Math.max(1, intParam("limit", query.get("limit"))) : 10;
+                    return array(reports.topSpecializations(from, to, limit), c -> "{\"specialization\":"
+                            + Json.quote(c.specialization) + ",\"booked\":" + c.booked + "}");
+                }
+                case "dashboard": {
+                    ReportService.Dashboard d = reports.monthlyDashboard(ReportService.requireMonth(query.get("month")));
+                    StringJoiner hours = new StringJoiner(",", "[", "]");
+                    for (long n : d.bookedByHour) hours.add(Long.toString(n));
+                    return "{\"month\":\"" + d.month + "\",\"appointments\":" + d.appointments
+                            + ",\"cancelled\":" + d.cancelled + ",\"cancelPercent\":" + round1(d.cancelPercent())
+                            + ",\"doctors\":" + array(d.doctors, a -> "{\"doctorId\":" + a.doctorId
+                                    + ",\"doctorName\":" + Json.quote(a.doctorName) + ",\"appointments\":" + a.appointments
+                                    + ",\"cancelled\":" + a.cancelled + ",\"cancelPercent\":" + round1(a.cancelPercent()) + "}")
+                            + ",\"specializations\":" + array(d.specializations, c -> "{\"specialization\":"
+                                    + Json.quote(c.specialization) + ",\"booked\":" + c.booked + "}")
+                            + ",\"bookedByHour\":" + hours + "}";
+                }
+                default:
+                    throw new ServiceException(ServiceException.Reason.NOT_FOUND, "No such report: " + name);
+            }
+        }
+
+        private static String round1(double value) {
+            return Double.isNaN(value) ? "null" : String.format(Locale.ROOT, "%.1f", value);
+        }
+
+        private static String[] pathSegments(String path) {
+            int from = 0, to = path.length();
+            while (from < to && path.charAt(from) == '/') from++;
+            while (to > from && path.charAt(to - 1) == '/') to--;
+            List<String> segments = new ArrayList<>(3);
+            for (int i = from; i <= to; i++) {
+                if (i == to || path.charAt(i) == '/') {
+                    segments.add(path.substring(from, i));
+                    from = i + 1;
+                }
+            }
+            return segments.toArray(new String[0]);
+        }
+
+        private static String readBody(HttpExchange exchange) throws IOException {
+            try (InputStream in = exchange.getRequestBody()) {
+                return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+        }
+
+        private static Map<String, String> queryParams(String rawQuery) {
+            Map<String, String> out = new HashMap<>();
+            if (rawQuery == null) return out;
+            for (String pair : rawQuery.split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0) {
+                    out.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                            URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+                }
+            }
+            return out;
+        }
+
+        private static int dateParam(String name, String value) {
+            int day = Appointment.parseDate(value);
+            if (day == Appointment.INVALID) throw new IllegalArgumentException("Invalid " + name + ": " + value);
+            return day;
+        }
+
+        private static String required(Map<String, String> params, String name) {
+            String value = params.get(name);
+            if (value == null) throw new IllegalArgumentException("Missing field: " + name);
+            return value;
+        }
+
+        private static int fromParam(Map<String, String> query) {
+            return query.containsKey("from") ? dateParam("from", query.get("from")) : (int) LocalDate.now().toEpochDay();
+        }
+
+        private static int countParam(Map<String, String> query) {
+            return query.containsKey("count")
+                    ? Math.max(1, Math.min(AppointmentService.MAX_FREE_SLOTS, intParam("count", query.get("count")))) : 10;
+        }
+
+        // workingDays / workingHours / slotMinutes, each falling back to 'current'.
+        private static WorkingHours workingHours(Map<String, String> params, WorkingHours current) {
+            return DoctorService.workingHours(params.getOrDefault("workingDays", current.formatDays()),
+                    params.getOrDefault("workingHours",
+                            Appointment.formatTimeSlot(current.getStartMinute(), current.getEndMinute())),
+                    params.getOrDefault("slotMinutes", Integer.toString(current.getSlotMinutes())));
+        }
+
+        private static int intParam(String name, String value) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid " + name + ": " + value);
+            }
+        }
+
+        private static <T> String array(List<T> items, Function<T, String> toJson) {
+            StringBuilder sb = new StringBuilder("[");
+            for (T item : items) {
+                if (sb.length() > 1) sb.append(',');
+                sb.append(toJson.apply(item));
+            }
+            return sb.append(']').toString();
+        }
+
+        static String patientJson(Patient p) {
+            return "{\"id\":" + p.getId() + ",\"name\":" + Json.quote(p.getName()) + ",\"age\":" + p.getAge()
+                    + ",\"gender\":" + Json.quote(p.getGender()) + ",\"phone\":" + Json.quote(p.getPhone()) + "}";
+        }
+
+        static String doctorJson(Doctor d) {
+            WorkingHours h = d.getHours();
+            return "{\"id\":" + d.getId() + ",\"name\":" + Json.quote(d.getName())
+                    + ",\"specialization\":" + Json.quote(d.getSpecialization())
+                    + ",\"workingDays\":\"" + h.formatDays() + "\",\"workingHours\":\""
+                    + Appointment.formatTimeSlot(h.getStartMinute(), h.getEndMinute())
+                    + "\",\"slotMinutes\":" + h.getSlotMinutes() + "}";
+        }
+
+        static String slotJson(FreeSlot f) {
+            return "{\"doctorId\":" + f.doctor.getId() + ",\"doctorName\":" + Json.quote(f.doctor.getName())
+                    + ",\"specialization\":" + Json.quote(f.doctor.getSpecialization())
+                    + ",\"date\":\"" + Appointment.formatDate(f.epochDay) + "\",\"timeSlot\":\""
+                    + Appointment.formatTimeSlot(f.startMinute, f.endMinute) + "\"}";
+        }
+
+        String appointmentJson(Appointment a) {
+            Patient p = patients.find(a.getPatientId());
+            Doctor d = doctors.find(a.getDoctorId());
+            return "{\"id\":" + a.getId() + ",\"patientId\":" + a.getPatientId()
+                    + ",\"patientName\":" + (p != null ? Json.quote(p.getName()) : "null")
+                    + ",\"doctorId\":" + a.getDoctorId()
+                    + ",\"doctorName\":" + (d != null ? Json.quote(d.getName()) : "null")
+                    + ",\"date\":\"" + a.getDate() + "\",\"timeSlot\":\"" + a.getTimeSlot()
+                    + "\",\"status\":\"" + a.getStatus() + "\"}";
+        }
+
+        private static String error(String message) {
+            return "{\"error\":" + Json.quote(message) + "}";
+        }
+    }
+
+    /** Just enough JSON for the API: string quoting and flat objects of scalars. */
+    static final class Json {
+        public static String quote(String s) {
+            StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                switch (c) {
+                    case '"': sb.append("\\\""); break;
+                    case '\\': sb.append("\\\\"); break;
+                    case '\n': sb.append("\\n"); break;
+                    case '\r': sb.append("\\r"); break;
+                    case '\t': sb.append("\\t"); break;
+                    default:
+                        if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+                        else sb.append(c);
+                }
+            }
+            return sb.append('"').toString();
+        }
+
+        // {"a": "x", "b": 12, "c": null} -> {a=x, b=12}; nested values are rejected.
+        public static Map<String, String> parseObject(String text) {
+            Map<String, String> out = new LinkedHashMap<>();
+            int[] pos = {skip(text, 0)};
+            expect(text, pos, '{');
+            if (peek(text, pos) == '}') {
+                pos[0]++;
+                return out;
+            }
+            while (true) {
+                String key = string(text, pos);
+                expect(text, pos, ':');
+                char c = peek(text, pos);
+                String value;
+                if (c == '"') {
+                    value = string(text, pos);
+                } else {
+                    int start = pos[0];
+                    while (pos[0] < text.length() && ",} \t\r\n".indexOf(text.charAt(pos[0])) < 0) pos[0]++;
+                    value = text.substring(start, pos[0]);
+                    if (value.isEmpty() || c == '{' || c == '[') throw new IllegalArgumentException("Unsupported JSON value for " + key);
+                    if (value.equals("null")) value = null;
+                }
+                if (value != null) out.put(key, value);
+                char next = peek(text, pos);
+                pos[0]++;
+                if (next == '}') return out;
+                if (next != ',') throw new IllegalArgumentException("Malformed JSON body");
+            }
+        }
+
+        private static String string(String text, int[] pos) {
+            expect(text, pos, '"');
+            StringBuilder sb = new StringBuilder();
+            while (pos[0] < text.length()) {
+                char c = text.charAt(pos[0]++);
+                if (c == '"') return sb.toString();
+                if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                if (pos[0] >= text.length()) break;
+                char e = text.charAt(pos[0]++);
+                switch (e) {
+                    case 'n': sb.append('\n'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'u':
+                        if (pos[0] + 4 > text.length()) throw new IllegalArgumentException("Malformed JSON body");
+                        sb.append((char) Integer.parseInt(text.substring(pos[0], pos[0] + 4), 16));
+                        pos[0] += 4;
+                        break;
+                    default: sb.append(e);
+                }
+            }
+            throw new IllegalArgumentException("Malformed JSON body");
+        }
+
+        private static void expect(String text, int[] pos, char c) {
+            if (peek(text, pos) != c) throw new IllegalArgumentException("Malformed JSON body");
+            pos[0]++;
+        }
+
+        private static char peek(String text, int[] pos) {
+            pos[0] = skip(text, pos[0]);
+            return pos[0] < text.length() ? text.charAt(pos[0]) : '\0';
+        }
+
+        private static int skip(String text, int i) {
+            while (i < text.length() && Character.isWhitespace(text.charAt(i))) i++;
+            return i;
+        }
+    }
+
+    // =========================================================
+    // CHANGE EVENTS
+    // =========================================================
+
+    enum ChangeType { PATIENT_ADDED, DOCTOR_ADDED, APPOINTMENT_BOOKED, APPOINTMENT_CANCELLED }
+
+    /** One committed change; the record is the Patient, Doctor or Appointment as stored. */
+    static final class ChangeEvent {
+        final long sequence;
+        final ChangeType type;
+        final long timeMillis;
+        private final Object record;
+
+        ChangeEvent(long sequence, ChangeType type, long timeMillis, Object record) {
+            this.sequence = sequence;
+            this.type = type;
+            this.timeMillis = timeMillis;
+            this.record = record;
+        }
+
+        public Patient patient() {
+            return (Patient) record(type == ChangeType.PATIENT_ADDED, "patient");
+        }
+
+        public Doctor doctor() {
+            return (Doctor) record(type == ChangeType.DOCTOR_ADDED, "doctor");
+        }
+
+        public Appointment appointment() {
+            return (Appointment) record(type == ChangeType.APPOINTMENT_BOOKED
+                    || type == ChangeType.APPOINTMENT_CANCELLED, "appointment");
+        }
+
+        private Object record(boolean carried, String kind) {
+            if (!carried) throw new IllegalStateException(type + " event #" + sequence + " has no " + kind);
+            return record;
+        }
+
+        // "42|APPOINTMENT_BOOKED|1763978400000|" followed by the record's own file line.
+        public String toFileString() {
+            String line;
+            switch (type) {
+                case PATIENT_ADDED: line = patient().toFileString(); break;
+                case DOCTOR_ADDED: line = doctor().toFileString(); break;
+                default: line = appointment().toFileString();
+            }
+            return sequence + "|" + type + "|" + timeMillis + "|" + line;
+        }
+
+        // Sequence number at the start of an event line, or -1.
+        static long sequenceOf(String line) {
+            int bar = line.indexOf('|');
+            try {
+                return Long.parseLong(bar < 0 ? line : line.substring(0, bar));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Change-data-capture for the services. publish() claims the next
+     * sequence number and drops the event into a fixed ring with one CAS: no
+     * lock, no I/O and no thread hand-off on the publishing path. The event
+     * file writer and each subscriber run on a daemon thread of their own and
+     * follow the ring with their own cursor.
+     *
+     * The file writer gates the ring: a publisher waits only if the writer
+     * has fallen a whole ring behind, so every event reaches the file.
+     * Subscribers do not gate; one that falls a ring behind skips ahead,
+     * counts what it missed, and can read it back from the file with tail.
+     *
+     * events.log holds one line per event (see ChangeEvent.toFileString) and
+     * is only ever appended to. The writer flushes whenever it catches up but
+     * does not fsync, so a crash can lose the last few events; sequence
+     * numbers carry on after the last complete line at the next start. The
+     * next number is read from the file only once, at open, so only the
+     * process holding the DataLock may open it; a second appender would
+     * reuse the same numbers.
+     */
+    static final class EventBus {
+        // No event file; subscribers can still attach.
+        static final EventBus NONE = new EventBus(null, 1);
+
+        private static final Metrics.Op PUBLISH = Metrics.op("events.publish");
+        private static final int RING_SIZE = 1 << 14;
+        // How long an idle follower sleeps before looking at the ring again.
+        private static final long IDLE_PARK_NANOS = 1_000_000;
+        // Bytes read back from the end of the file to find the last sequence number.
+        private static final int TAIL_WINDOW = 1 << 16;
+
+        private final AtomicReferenceArray<ChangeEvent> ring = new AtomicReferenceArray<>(RING_SIZE);
+        private final AtomicLong next;
+        private final LogWriter writer;
+        private final List<Follower> followers = new CopyOnWriteArrayList<>();
+        private volatile boolean closed;
+
+        private EventBus(Writer log, long firstSequence) {
+            this.next = new AtomicLong(firstSequence);
+            this.writer = log == null ? null : new LogWriter(log);
+            if (writer != null) writer.start(firstSequence);
+        }
+
+        // Appends to the event file in the locked data directory, creating it if needed. Without a
+        // usable file, events still reach subscribers.
+        static EventBus open(DataLock owner) {
+            String path = owner.resolve(EVENT_FILE);
+            try {
+                long first;
+                try (FileChannel ch = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    first = recover(ch, path) + 1;
+                }
+                Writer log = new BufferedWriter(new OutputStreamWriter(
+                        new FileOutputStream(path, true), StandardCharsets.UTF_8), 1 << 16);
+                return new EventBus(log, first);
+            } catch (IOException e) {
+                System.out.println("Warning: could not open " + path + "; change events are not logged. " + e.getMessage());
+                return new EventBus(null, 1);
+            }
+        }
+
+        // Cuts off a torn last line and returns the last sequence number in the file, 0 when empty.
+        private static long recover(FileChannel ch, String path) throws IOException {
+            long size = ch.size();
+            int window = (int) Math.min(size, TAIL_WINDOW);
+            ByteBuffer buf = ByteBuffer.allocate(window);
+            while (buf.hasRemaining()) {
+                if (ch.read(buf, size - window + buf.position()) < 0) break;
+            }
+            byte[] bytes = buf.array();
+            int end = window;
+            while (end > 0 && bytes[end - 1] != '\n') end--;
+            if (end < window) {
+                System.out.println("Warning: ignoring incomplete " + path + " tail.");
+                ch.truncate(size - window + end);
+                ch.force(true);
+            }
+            if (end == 0) {
+                if (size > window) throw new IOException("no complete line in the last " + window + " bytes");
+                return 0;
+            }
+            int start = end - 1;
+            while (start > 0 && bytes[start - 1] != '\n') start--;
+            long last = ChangeEvent.sequenceOf(new String(bytes, start, end - 1 - start, StandardCharsets.UTF_8));
+            if (last < 0) throw new IOException("unreadable last event");
+            return last;
+        }
+
+        public void publish(ChangeType type, Object record) {
+            long started = System.nanoTime();
+            long seq = next.getAndIncrement();
+            ChangeEvent e = new ChangeEvent(seq, type, System.currentTimeMillis(), record);
+            // Only a writer a whole ring behind holds the publisher up; the slot it needs is unread.
+            while (writer != null && !writer.stopped && seq - writer.cursor >= RING_SIZE) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+            int slot = (int) (seq & (RING_SIZE - 1));
+            ChangeEvent current;
+            do {
+                current = ring.get(slot);
+                // A publisher that stalled for a whole ring must not overwrite a later event.
+            } while ((current == null || current.sequence < seq) && !ring.compareAndSet(slot, current, e));
+            PUBLISH.record(started);
+        }
+
+        // Delivers every event published from now on to 'consumer', in sequence order, on its own thread.
+        public Subscription subscribe(String name, Consumer<ChangeEvent> consumer) {
+            Subscription s = new Subscription(name, consumer);
+            s.start(next.get());
+            return s;
+        }
+
+        // Lets the followers drain what has been published, then stops them.
+        public void close() {
+            closed = true;
+            for (Follower f : followers) f.stop();
+        }
+
+        /** A daemon thread reading the ring in sequence order from its own cursor. */
+        private abstract class Follower implements Runnable {
+            private final String name;
+            private Thread thread;
+            volatile long cursor;
+            volatile boolean stopped;
+            private volatile boolean stopping;
+
+            Follower(String name) {
+                this.name = name;
+            }
+
+            void start(long from) {
+                cursor = from;
+                followers.add(this);
+                thread = new Thread(this, name);
+                thread.setDaemon(true);
+                thread.start();
+            }
+
+            void stop() {
+                stopping = true;
+                LockSupport.unpark(thread);
+                try {
+                    thread.join(5000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                followers.remove(this);
+            }
+
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        ChangeEvent e = ring.get((int) (cursor & (RING_SIZE - 1)));
+                        if (e == null || e.sequence < cursor) {
+                            caughtUp();
+                            if ((stopping || closed) && cursor >= next.get()) break;
+                            LockSupport.parkNanos(IDLE_PARK_NANOS);
+                        } else if (e.sequence > cursor) {
+                            long oldest = next.get() - RING_SIZE;
+                            lapped(oldest - cursor);
+                            cursor = oldest;
+                        } else {
+                            deliver(e);
+                            cursor = e.sequence + 1;
+                        }
+                    }
+                } finally {
+                    stopped = true;
+                    finish();
+                }
+            }
+
+            abstract void deliver(ChangeEvent e);
+
+            void caughtUp() { }
+
+            void lapped(long missed) { }
+
+            void finish() { }
+        }
+
+        /** An in-process consumer; see subscribe. */
+        final class Subscription extends Follower {
+            private final Consumer<ChangeEvent> consumer;
+            private final AtomicLong missed = new AtomicLong();
+
+            private Subscription(String name, Consumer<ChangeEvent> consumer) {
+                super(name);
+                this.consumer = consumer;
+            }
+
+            // Events skipped because this subscriber fell a whole ring behind.
+            public long missed() {
+                return missed.get();
+            }
+
+            public void close() {
+                stop();
+            }
+
+            @Override
+            void deliver(ChangeEvent e) {
+                try {
+                    consumer.accept(e);
+                } catch (RuntimeException ex) {
+                    System.out.println("Warning: event subscriber failed on event " + e.sequence + ": " + ex);
+                }
+            }
+
+            @Override
+            void lapped(long count) {
+                missed.addAndGet(count);
+            }
+        }
+
+        private final class LogWriter extends Follower {
+            private final Writer out;
+            private boolean dirty;
+            private boolean failed;
+
+            LogWriter(Writer out) {
+                super("hospital-events");
+                this.out = out;
+            }
+
+            @Override
+            void deliver(ChangeEvent e) {
+                if (failed) return;
+                try {
+                    out.write(e.toFileString());
+                    out.write('\n');
+                    dirty = true;
+                } catch (IOException ex) {
+                    fail(ex);
+                }
+            }
+
+            @Override
+            void caughtUp() {
+                if (!dirty || failed) return;
+                try {
+                    out.flush();
+                    dirty = false;
+                } catch (IOException ex) {
+                    fail(ex);
+                }
+            }
+
+            @Override
+            void finish() {
+                caughtUp();
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                    // Already reported by caughtUp if it mattered.
+                }
+            }
+
+            // Keeps following the ring so publishers never wait on a dead writer.
+            private void fail(IOException ex) {
+                failed = true;
+                System.out.println("Warning: could not write change events; no longer logging them. " + ex.getMessage());
+            }
+        }
+
+        // Prints the events after byte 'offset' of the file, each prefixed with the offset just past
+        // it, so passing the last offset printed resumes after that event. With follow, waits for more.
+        static void tail(String path, long offset, boolean follow, PrintStream out) throws IOException, InterruptedException {
+            try (FileChannel ch = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+                if (offset < 0 || offset > ch.size()) {
+                    throw new IllegalArgumentException("Offset " + offset + " is outside " + path
+                            + " (" + ch.size() + " bytes).");
+                }
+                ByteBuffer one = ByteBuffer.allocate(1);
+                if (offset > 0 && (ch.read(one, offset - 1) != 1 || one.get(0) != '\n')) {
+                    throw new IllegalArgumentException("Offset " + offset + " is not at the start of an event.");
+                }
+                ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+                ByteArrayOutputStream line = new ByteArrayOutputStream();
+                long lineStart = offset;
+                long pos = offset;
+                while (true) {
+                    // A restart cuts a torn last line off; start that line again.
+                    if (ch.size() < pos) {
+                        line.reset();
+                        pos = lineStart;
+                    }
+                    buf.clear();
+                    int n = ch.read(buf, pos);
+                    if (n <= 0) {
+                        out.flush();
+                        if (!follow) return;
+                        Thread.sleep(200);
+                        continue;
+                    }
+                    byte[] bytes = buf.array();
+                    int from = 0;
+                    for (int i = 0; i < n; i++) {
+                        if (bytes[i] != '\n') continue;
+                        line.write(bytes, from, i - from);
+                        lineStart = pos + i + 1;
+                        out.println(lineStart + " " + new String(line.toByteArray(), StandardCharsets.UTF_8));
+                        line.reset();
+                        from = i + 1;
+                    }
+                    line.write(bytes, from, n - from);
+                    pos += n;
+                }
+            }
+        }
+    }
+
+    // =========================================================
+    // ANALYTICS
+    // =========================================================
+
+    /**
+     * Group-by, count and histogram queries over an appointment snapshot.
+     * The snapshot's chunks are split across the common ForkJoinPool; each
+     * leaf task counts its chunks into its own accumulator and results are
+     * merged as the tasks join. Nothing is allocated per row and group keys
+     * stay primitive ints throughout (see IntCounts).
+     *
+     *   Analytics.of(appointments.snapshot())
+     *           .where(Analytics.BOOKED.and(Analytics.between(from, to)))
+     *           .countBy(Analytics.DOCTOR)
+     */
+    static final class Analytics {
+        static final ToIntFunction<Appointment> DOCTOR = Appointment::getDoctorId;
+        static final ToIntFunction<Appointment> PATIENT = Appointment::getPatientId;
+        static final ToIntFunction<Appointment> DAY = Appointment::getEpochDay;
+        static final ToIntFunction<Appointment> START_MINUTE = Appointment::getStartMinute;
+        static final ToIntFunction<Appointment> STATUS = a -> a.getStatus().ordinal();
+
+        static final Predicate<Appointment> BOOKED = Appointment::isBooked;
+        static final Predicate<Appointment> CANCELLED = a -> !a.isBooked();
+
+        // Chunks (of 4096 ids) a leaf task scans without splitting further.
+        private static final int LEAF_CHUNKS = 4;
+
+        private final IdTable.Snapshot<Appointment> snapshot;
+        private final Predicate<Appointment> filter;
+
+        private Analytics(IdTable.Snapshot<Appointment> snapshot, Predicate<Appointment> filter) {
+            this.snapshot = snapshot;
+            this.filter = filter;
+        }
+
+        static Analytics of(IdTable.Snapshot<Appointment> snapshot) {
+            return new Analytics(snapshot, null);
+        }
+
+        // Inclusive range of epoch days.
+        static Predicate<Appointment> between(int fromDay, int toDay) {
+            return a -> a.getEpochDay() >= fromDay && a.getEpochDay() <= toDay;
+        }
+
+        Analytics where(Predicate<Appointment> condition) {
+            return new Analytics(snapshot, filter == null ? condition : filter.and(condition));
+        }
+
+        long count() {
+            return scan(() -> new long[1], (n, a) -> n[0]++, (x, y) -> {
+                x[0] += y[0];
+                return x;
+            })[0];
+        }
+
+        IntCounts countBy(ToIntFunction<Appointment> key) {
+            return scan(IntCounts::new, (counts, a) -> counts.add(key.applyAsInt(a), 1), (x, y) -> {
+                x.addAll(y);
+                return x;
+            });
+        }
+
+        // Rows per bucket [min + i * width, min + (i + 1) * width); values outside go to the first or last bucket.
+        long[] histogram(ToIntFunction<Appointment> value, int min, int width, int buckets) {
+            return scan(() -> new long[buckets], (h, a) -> {
+                int bucket = Math.floorDiv(value.applyAsInt(a) - min, width);
+                h[Math.max(0, Math.min(buckets - 1, bucket))]++;
+            }, (x, y) -> {
+                for (int i = 0; i < x.length; i++) x[i] += y[i];
+                return x;
+            });
+        }
+
+        private <R> R scan(Supplier<R> create, BiConsumer<R, Appointment> add, BinaryOperator<R> merge) {
+            return ForkJoinPool.commonPool().invoke(new Scan<>(create, add, merge, 0, snapshot.chunkCount()));
+        }
+
+        // Serializable only because ForkJoinTask is; tasks never leave the pool.
+        private final class Scan<R> extends RecursiveTask<R> {
+            private static final long serialVersionUID = 1L;
+
+            private final Supplier<R> create;
+            private final BiConsumer<R, Appointment> add;
+            private final BinaryOperator<R> merge;
+            private final int from;
+            private final int to;
+
+            Scan(Supplier<R> create, BiConsumer<R, Appointment> add, BinaryOperator<R> merge, int from, int to) {
+                this.create = create;
+                this.add = add;
+                this.merge = merge;
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected R compute() {
+                if (to - from > LEAF_CHUNKS) {
+                    int mid = (from + to) >>> 1;
+                    Scan<R> left = new Scan<>(create, add, merge, from, mid);
+                    left.fork();
+                    R right = new Scan<>(create, add, merge, mid, to).compute();
+                    return merge.apply(left.join(), right);
+                }
+                R result = create.get();
+                for (int c = from; c < to; c++) {
+                    Object[] rows = snapshot.chunk(c);
+                    if (rows == null) continue;
+                    for (Object row : rows) {
+                        if (row == null) continue;
+                        Appointment a = (Appointment) row;
+                        if (filter == null || filter.test(a)) add.accept(result, a);
+                    }
+                }
+                return result;
+            }
+        }
+    }
+
+    /**
+     * int -> long counters in an open-addressing table with linear probing.
+     * A zero count marks a free slot, so every int is a valid key.
+     */
+    static final class IntCounts {
+        interface Entry {
+            void accept(int key, long count);
+        }
+
+        private int[] keys = new int[16];
+        private long[] counts = new long[16];
+        private int size;
+
+        public void add(int key, long n) {
+            if (n == 0) return;
+            if (2 * (size + 1) > keys.length) resize(keys.length * 2);
+            int i = slot(key);
+            if (counts[i] == 0) {
+                keys[i] = key;
+                size++;
+            }
+            counts[i] += n;
+        }
+
+        public void addAll(IntCounts other) {
+            for (int i = 0; i < other.keys.length; i++) {
+                if (other.counts[i] != 0) add(other.keys[i], other.counts[i]);
+            }
+        }
+
+        public long get(int key) {
+            return counts[slot(key)];
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public long total() {
+            long total = 0;
+            for (long c : counts) total += c;
+            return total;
+        }
+
+        public void forEach(Entry action) {
+            for (int i = 0; i < keys.length; i++) {
+                if (counts[i] != 0) action.accept(keys[i], counts[i]);
+            }
+        }
+
+        // Up to 'limit' keys, highest count first and lower key first on ties.
+        public int[] top(int limit) {
+            int[] result = new int[Math.min(limit, size)];
+            int n = 0;
+            // Selection into a small sorted array; 'limit' is a handful of rows for dashboards.
+            for (int i = 0; i < keys.length; i++) {
+                if (counts[i] == 0) continue;
+                int pos = n;
+                while (pos > 0 && ranksBefore(keys[i], counts[i], result[pos - 1])) pos--;
+                if (pos == result.length) continue;
+                int end = Math.min(n, result.length - 1);
+                System.arraycopy(result, pos, result, pos + 1, end - pos);
+                result[pos] = keys[i];
+                if (n < result.length) n++;
+            }
+            return result;
+        }
+
+        private boolean ranksBefore(int key, long count, int other) {
+            long otherCount = get(other);
+            return count > otherCount || (count == otherCount && key < other);
+        }
+
+        private int slot(int key) {
+            int mask = keys.length - 1;
+            int h = key * 0x9E3779B9;
+            int i = (h ^ (h >>> 16)) & mask;
+            while (counts[i] != 0 && keys[i] != key) i = (i + 1) & mask;
+            return i;
+        }
+
+        private void resize(int capacity) {
+            int[] oldKeys = keys;
+            long[] oldCounts = counts;
+            keys = new int[capacity];
+            counts = new long[capacity];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldCounts[i] != 0) add(oldKeys[i], oldCounts[i]);
+            }
+        }
+    }
+
+    // =========================================================
+    // METRICS
+    // =========================================================
+
+    /** JMX view of one Metrics.Op, registered as HospitalAppointmentSystem:type=Operation,name=<op>. */
+    public interface OperationMXBean {
+        long getCount();
+        long getBytes();
+        double getMeanMicros();
+        double getP50Micros();
+        double getP99Micros();
+        double getMaxMicros();
+    }
+
+    /**
+     * Always-on counters and latency histograms per operation, shown by the
+     * "metrics" console command and published over JMX.
+     *
+     * Recording costs two nanoTime calls, a few LongAdder adds and one
+     * AtomicLongArray increment. Latencies go into log-linear buckets,
+     * 16 per power of two as in HdrHistogram, so a percentile is accurate to
+     * about 6%, needs no sorting, and each operation uses a fixed 8 KB.
+     */
+    static final class Metrics {
+        private static final Map<String, Op> OPS = new ConcurrentHashMap<>();
+
+        static Op op(String name) {
+            return OPS.computeIfAbsent(name, Metrics::register);
+        }
+
+        private static Op register(String name) {
+            Op op = new Op();
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(op,
+                        new ObjectName("HospitalAppointmentSystem:type=Operation,name=" + name));
+            } catch (JMException e) {
+                // Metrics still work without JMX.
+            }
+            return op;
+        }
+
+        static void print(PrintStream out) {
+            List<String> names = new ArrayList<>(OPS.keySet());
+            Collections.sort(names);
+            out.println("---- Metrics since startup (latencies in microseconds) ----");
+            out.printf("%-34s %10s %10s %10s %10s %14s%n", "operation", "count", "p50", "p99", "max", "bytes");
+            boolean any = false;
+            for (String name : names) {
+                Op op = OPS.get(name);
+                if (op.getCount() == 0) continue;
+                any = true;
+                out.printf("%-34s %10d %10.1f %10.1f %10.1f %14d%n", name, op.getCount(),
+                        op.getP50Micros(), op.getP99Micros(), op.getMaxMicros(), op.getBytes());
+            }
+            if (!any) out.println("No operations recorded yet.");
+        }
+
+        static final class Op implements OperationMXBean {
+            private static final int SUB_BUCKETS = 16;
+
+            private final LongAdder count = new LongAdder();
+            private final LongAdder totalNanos = new LongAdder();
+            private final LongAdder bytes = new LongAdder();
+            private final AtomicLong maxNanos = new AtomicLong();
+            private final AtomicLongArray buckets = new AtomicLongArray(bucket(Long.MAX_VALUE) + 1);
+
+            public void record(long startNanos) {
+                record(startNanos, 0);
+            }
+
+            public void record(long startNanos, long byteCount) {
+                long nanos = Math.max(0, System.nanoTime() - startNanos);
+                count.increment();
+                totalNanos.add(nanos);
+                if (byteCount > 0) bytes.add(byteCount);
+                buckets.incrementAndGet(bucket(nanos));
+                if (nanos > maxNanos.get()) maxNanos.accumulateAndGet(nanos, Math::max);
+            }
+
+            // Exact below 16 ns, then 16 linear sub-buckets per power of two.
+            static int bucket(long nanos) {
+                if (nanos < SUB_BUCKETS) return (int) nanos;
+                int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+                return (exponent - 3) * SUB_BUCKETS + (int) ((nanos >>> (exponent - 4)) & (SUB_BUCKETS - 1));
+            }
+
+            static long bucketUpperBound(int index) {
+                if (index < SUB_BUCKETS) return index;
+                int shift = index / SUB_BUCKETS - 1;
+                return ((long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift) + (1L << shift) - 1;
+            }
+
+            public long percentileNanos(double fraction) {
+                long[] counts = new long[buckets.length()];
+                long total = 0;
+                for (int i = 0; i < counts.length; i++) {
+                    counts[i] = buckets.get(i);
+                    total += counts[i];
+                }
+                long rank = Math.max(1, (long) Math.ceil(fraction * total));
+                long seen = 0;
+                for (int i = 0; i < counts.length; i++) {
+                    seen += counts[i];
+                    if (seen >= rank) return Math.min(bucketUpperBound(i), maxNanos.get());
+                }
+                return 0;
+            }
+
+            @Override public long getCount() { return count.sum(); }
+            @Override public long getBytes() { return bytes.sum(); }
+            @Override public double getMeanMicros() {
+                long n = count.sum();
+                return n == 0 ? 0 : totalNanos.sum() / 1000.0 / n;
+            }
+            @Override public double getP50Micros() { return percentileNanos(0.50) / 1000.0; }
+            @Override public double getP99Micros() { return percentileNanos(0.99) / 1000.0; }
+            @Override public double getMaxMicros() { return maxNanos.get() / 1000.0; }
+        }
+    }
+
+    // =========================================================
+    // UTILITY METHODS
+    // =========================================================
+
+    // Very simple escaping to avoid breaking file format with pipes and newlines.
+    static String escape(String s) {
+        if (s == null) return "";
+        return s.replace("\\", "\\\\")
+                .replace("|", "\\p")
+                .replace("\n", "\\n")
+                .replace("\r", "\\r");
+    }
+
+    // Splits one CSV line; fields may be quoted, with "" standing for a quote inside a quoted field.
+    static String[] splitCsv(String line) {
+        List<String> fields = new ArrayList<>(6);
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c != '"') field.append(c);
+                else if (i + 1 < line.length() && line.charAt(i + 1) == '"') field.append(line.charAt(++i));
+                else quoted = false;
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        if (quoted) throw new IllegalArgumentException("Unterminated quoted field");
+        fields.add(field.toString());
+        return fields.toArray(new String[0]);
+    }
+
+    /**
+     * Single-pass reader over one pipe-delimited line. Escapes written by
+     * escape() are decoded inline, left to right, so "\\\\p" reads back as a
+     * backslash followed by 'p'; ints are parsed straight from the
+     * characters, so a field costs at most one String and ints cost none.
+     * A missing or malformed field throws IllegalArgumentException.
+     */
+    static final class FieldReader {
+        private final String line;
+        private int pos;
+
+        FieldReader(String line) {
+            this.line = line;
+        }
+
+        public int nextInt() {
+            int end = line.length();
+            if (pos > end) throw new IllegalArgumentException("missing field");
+            int i = pos;
+            boolean negative = i < end && line.charAt(i) == '-';
+            if (negative) i++;
+            long value = 0;
+            int digits = 0;
+            for (; i < end; i++) {
+                char c = line.charAt(i);
+                if (c == '|') break;
+                if (c < '0' || c > '9' || ++digits > 10) throw new NumberFormatException("bad int field");
+                value = value * 10 + (c - '0');
+            }
+            if (negative) value = -value;
+            if (digits == 0 || value > Integer.MAX_VALUE || value < Integer.MIN_VALUE) {
+                throw new NumberFormatException("bad int field");
+            }
+            pos = i + 1;
+            return (int) value;
+        }
+
+        // A record id: ids index arrays directly, so a negative one is as malformed as a non-number.
+        public int nextId() {
+            int id = nextInt();
+            if (id < 0) throw new NumberFormatException("negative id field");
+            return id;
+        }
+
+        public boolean hasNext() {
+            return pos <= line.length();
+        }
+
+        public String nextString() {
+            int end = line.length();
+            if (pos > end) throw new IllegalArgumentException("missing field");
+            int start = pos;
+            StringBuilder decoded = null;
+            int i = start;
+            for (; i < end; i++) {
+                char c = line.charAt(i);
+                if (c == '|') break;
+                if (c != '\\' || i + 1 == end) {
+                    if (decoded != null) decoded.append(c);
+                    continue;
+                }
+                if (decoded == null) decoded = new StringBuilder(end - start).append(line, start, i);
+                char next = line.charAt(++i);
+                switch (next) {
+                    case '\\': decoded.append('\\'); break;
+                    case 'p': decoded.append('|'); break;
+                    case 'n': decoded.append('\n'); break;
+                    case 'r': decoded.append('\r'); break;
+                    default: decoded.append(c).append(next);
+                }
+            }
+            pos = i + 1;
+            return decoded != null ? decoded.toString() : line.substring(start, i);
+        }
+    }
+}
\ No newline at end of file
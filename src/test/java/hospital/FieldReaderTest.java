@@ -0,0 +1,55 @@
+package hospital;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import hospital.HospitalAppointmentSystem.FieldReader;
+import hospital.HospitalAppointmentSystem.Patient;
+
+import org.junit.jupiter.api.Test;
+
+class FieldReaderTest {
+    // Strings that break a naive split or a replace chain applied in the wrong order.
+    private static final String[] TRICKY = {
+        "a|b",
+        "back\\slash",
+        "\\p",
+        "\\\\p",
+        "trailing\\",
+        "\\",
+        "|",
+        "||\\|\\p\\",
+        "line\nbreak\r",
+        "",
+    };
+
+    @Test
+    void escapedFieldsReadBack() {
+        for (String value : TRICKY) {
+            FieldReader in = new FieldReader(HospitalAppointmentSystem.escape(value));
+            assertEquals(value, in.nextString(), "round trip of " + value);
+            assertFalse(in.hasNext());
+        }
+    }
+
+    @Test
+    void escapedFieldsKeepTheirNeighbours() {
+        StringBuilder line = new StringBuilder("7");
+        for (String value : TRICKY) line.append('|').append(HospitalAppointmentSystem.escape(value));
+        FieldReader in = new FieldReader(line.toString());
+        assertEquals(7, in.nextInt());
+        for (String value : TRICKY) assertEquals(value, in.nextString());
+        assertFalse(in.hasNext());
+    }
+
+    @Test
+    void patientRoundTripsThroughItsFileLine() {
+        for (String value : TRICKY) {
+            Patient p = new Patient(3, "Name " + value, 40, value, value + "555");
+            Patient back = Patient.fromFileString(p.toFileString());
+            assertEquals(p.getName(), back.getName());
+            assertEquals(p.getGender(), back.getGender());
+            assertEquals(p.getPhone(), back.getPhone());
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package hospital;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import hospital.HospitalAppointmentSystem.Appointment;
+import hospital.HospitalAppointmentSystem.AppointmentRepository;
+import hospital.HospitalAppointmentSystem.AppointmentService;
+import hospital.HospitalAppointmentSystem.DataLock;
+import hospital.HospitalAppointmentSystem.DoctorRepository;
+import hospital.HospitalAppointmentSystem.DoctorService;
+import hospital.HospitalAppointmentSystem.EventBus;
+import hospital.HospitalAppointmentSystem.HttpApi;
+import hospital.HospitalAppointmentSystem.PatientRepository;
+import hospital.HospitalAppointmentSystem.PatientService;
+import hospital.HospitalAppointmentSystem.ReportService;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The HTTP API under load: a server on an ephemeral localhost port over
+ * temporary data files, with CLIENTS requests in flight (each client issues
+ * its requests back to back) mixing bookings with reads. Throughput and
+ * latency percentiles go to the test's standard output.
+ */
+class LoadTest {
+    private static final int CLIENTS = 200;
+    private static final int REQUESTS_PER_CLIENT = 20;
+    private static final int PATIENTS = 1000;
+    private static final int DOCTORS = 50;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void everyRequestIsAnsweredWithoutDoubleBookingOrLostEvents() throws Exception {
+        String[] files = {dir.resolve("patients.txt").toString(), dir.resolve("doctors.txt").toString(),
+                dir.resolve("appointments.txt").toString()};
+        for (String f : files) Files.createFile(Path.of(f));
+        try (DataLock lock = DataLock.acquire(dir)) {
+            EventBus events = EventBus.open(lock);
+            PatientRepository pr = new PatientRepository(files[0]);
+            DoctorRepository dr = new DoctorRepository(files[1]);
+            AppointmentRepository ar = new AppointmentRepository(files[2]);
+            PatientService patients = new PatientService(pr, events);
+            DoctorService doctors = new DoctorService(dr, events);
+            for (int i = 1; i <= PATIENTS; i++) patients.add("Patient " + i, 40, "F", "555" + i);
+            for (int i = 1; i <= DOCTORS; i++) doctors.add("Doctor " + i, "General");
+            HttpApi api = new HttpApi(patients, doctors, new AppointmentService(ar, pr, dr, events),
+                    new ReportService(ar, dr));
+            InetSocketAddress address = api.start(0);
+            String base = "http://" + address.getHostString() + ":" + address.getPort();
+
+            ExecutorService clientPool = Executors.newFixedThreadPool(8);
+            HttpClient http = HttpClient.newBuilder().executor(clientPool).build();
+            int total = CLIENTS * REQUESTS_PER_CLIENT;
+            long[] latencies = new long[total];
+            AtomicInteger recorded = new AtomicInteger();
+            AtomicInteger created = new AtomicInteger();
+            AtomicInteger failures = new AtomicInteger();
+            long t0 = System.nanoTime();
+            CompletableFuture<?>[] running = new CompletableFuture<?>[CLIENTS];
+            for (int c = 0; c < CLIENTS; c++) {
+                running[c] = client(http, base, new Random(c), REQUESTS_PER_CLIENT, latencies, recorded, created,
+                        failures);
+            }
+            CompletableFuture.allOf(running).join();
+            long elapsed = System.nanoTime() - t0;
+            api.stop();
+            clientPool.shutdown();
+            events.close();
+
+            int n = recorded.get();
+            Arrays.sort(latencies, 0, n);
+            System.out.printf("%d clients x %d requests: %d responses in %d ms (%.0f req/s)%n",
+                    CLIENTS, REQUESTS_PER_CLIENT, n, elapsed / 1_000_000, n * 1e9 / elapsed);
+            System.out.printf("latency ms: p50 %.2f  p90 %.2f  p99 %.2f  p99.9 %.2f  max %.2f%n",
+                    pct(latencies, n, 0.50), pct(latencies, n, 0.90), pct(latencies, n, 0.99),
+                    pct(latencies, n, 0.999), n == 0 ? 0 : latencies[n - 1] / 1e6);
+
+            assertEquals(total, n, "responses");
+            assertEquals(0, failures.get(), "unexpected statuses or errors");
+            assertEquals(created.get(), ar.findAll().size(), "appointments stored");
+            assertEquals(0, StressTest.countOverlaps(ar.findAll()), "double bookings");
+            assertEquals(PATIENTS + DOCTORS + created.get(), Files.readAllLines(Path.of(lock.resolve("events.log"))).size(),
+                    "lines in events.log");
+        }
+    }
+
+    private static CompletableFuture<Void> client(HttpClient http, String base, Random rnd, int remaining,
+                                                  long[] latencies, AtomicInteger recorded, AtomicInteger created,
+                                                  AtomicInteger failures) {
+        if (remaining == 0) return CompletableFuture.completedFuture(null);
+        HttpRequest request;
+        if (rnd.nextInt(4) == 0) {
+            int start = 8 * 60 + 15 * rnd.nextInt(40);
+            String body = "{\"patientId\":" + (rnd.nextInt(PATIENTS) + 1) + ",\"doctorId\":" + (rnd.nextInt(DOCTORS) + 1)
+                    + ",\"date\":\"" + Appointment.formatDate(20000 + rnd.nextInt(30))
+                    + "\",\"timeSlot\":\"" + Appointment.formatTimeSlot(start, start + 15) + "\"}";
+            request = HttpRequest.newBuilder(URI.create(base + "/appointments"))
+                    .POST(HttpRequest.BodyPublishers.ofString(body)).build();
+        } else {
+            request = HttpRequest.newBuilder(URI.create(base + "/patients/" + (rnd.nextInt(PATIENTS) + 1))).build();
+        }
+        long start = System.nanoTime();
+        return http.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                .handle((response, error) -> {
+                    latencies[recorded.getAndIncrement()] = System.nanoTime() - start;
+                    if (error == null && response.statusCode() == 201) {
+                        created.incrementAndGet();
+                    } else if (error != null || (response.statusCode() != 200 && response.statusCode() != 409)) {
+                        if (failures.getAndIncrement() == 0) {
+                            System.out.println("First failure: " + (error != null ? error : response.statusCode()));
+                        }
+                    }
+                    return null;
+                })
+                .thenCompose(ignored -> client(http, base, rnd, remaining - 1, latencies, recorded, created, failures));
+    }
+
+    private static double pct(long[] sorted, int n, double p) {
+        return n == 0 ? 0 : sorted[Math.min(n - 1, (int) Math.ceil(p * n) - 1)] / 1e6;
+    }
+}
@@ -0,0 +1,155 @@
+package hospital;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import hospital.HospitalAppointmentSystem.Appointment;
+import hospital.HospitalAppointmentSystem.AppointmentRepository;
+import hospital.HospitalAppointmentSystem.AppointmentService;
+import hospital.HospitalAppointmentSystem.ChangeEvent;
+import hospital.HospitalAppointmentSystem.ChangeType;
+import hospital.HospitalAppointmentSystem.DataLock;
+import hospital.HospitalAppointmentSystem.Doctor;
+import hospital.HospitalAppointmentSystem.DoctorRepository;
+import hospital.HospitalAppointmentSystem.EventBus;
+import hospital.HospitalAppointmentSystem.FieldReader;
+import hospital.HospitalAppointmentSystem.Patient;
+import hospital.HospitalAppointmentSystem.PatientRepository;
+import hospital.HospitalAppointmentSystem.ServiceException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Several desks booking and cancelling at once against shared services.
+ * Slots are drawn from a small window so most attempts collide. The storage
+ * mode is fixed per JVM, so build.gradle runs this class again under
+ * -Dhospital.storage=journal and -Dhospital.storage=db.
+ */
+class StressTest {
+    private static final int THREADS = 16;
+    private static final int ATTEMPTS = 2000;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void concurrentDesksNeverDoubleBookOrLoseEvents() throws Exception {
+        String patientFile = dir.resolve("patients.txt").toString();
+        String doctorFile = dir.resolve("doctors.txt").toString();
+        String appointmentFile = dir.resolve("appointments.txt").toString();
+        for (String f : new String[] {patientFile, doctorFile, appointmentFile}) {
+            Files.createFile(Path.of(f));
+        }
+        try (DataLock lock = DataLock.acquire(dir)) {
+            PatientRepository patients = new PatientRepository(patientFile);
+            DoctorRepository doctors = new DoctorRepository(doctorFile);
+            AppointmentRepository appointments = new AppointmentRepository(appointmentFile);
+            for (int i = 1; i <= 20; i++) patients.add(new Patient(i, "Patient " + i, 30, "F", "555" + i));
+            for (int i = 1; i <= 8; i++) doctors.add(new Doctor(i, "Doctor " + i, "General"));
+            String eventFile = lock.resolve("events.log");
+            EventBus events = EventBus.open(lock);
+            AtomicLong delivered = new AtomicLong(), outOfOrder = new AtomicLong();
+            EventBus.Subscription subscriber = events.subscribe("stress-subscriber", e -> {
+                if (e.sequence != delivered.incrementAndGet()) outOfOrder.incrementAndGet();
+            });
+            AppointmentService service = new AppointmentService(appointments, patients, doctors, events);
+
+            AtomicInteger booked = new AtomicInteger(), cancelled = new AtomicInteger();
+            CountDownLatch start = new CountDownLatch(1);
+            ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+            List<Future<?>> desks = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                long seed = t;
+                desks.add(pool.submit(() -> {
+                    Random rnd = new Random(seed);
+                    start.await();
+                    for (int i = 0; i < ATTEMPTS; i++) {
+                        try {
+                            if (rnd.nextInt(10) == 0) {
+                                service.cancel(rnd.nextInt(Math.max(1, booked.get())) + 1);
+                                cancelled.incrementAndGet();
+                            } else {
+                                int from = 9 * 60 + 5 * rnd.nextInt(24);
+                                int length = 10 + 5 * rnd.nextInt(4);
+                                service.book(rnd.nextInt(20) + 1, rnd.nextInt(8) + 1, 20000 + rnd.nextInt(2),
+                                        from, from + length);
+                                booked.incrementAndGet();
+                            }
+                        } catch (ServiceException e) {
+                            // A collision or an already cancelled appointment; both are expected here.
+                        }
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> desk : desks) desk.get();
+            pool.shutdown();
+            subscriber.close();
+            events.close();
+
+            int changes = booked.get() + cancelled.get();
+            assertEquals(0, countOverlaps(appointments.findAll()), "double bookings in memory");
+            assertEquals(0, countOverlaps(new AppointmentRepository(appointmentFile).findAll()),
+                    "double bookings on disk");
+            assertEquals(booked.get(), appointments.findAll().size(), "appointments stored");
+            assertEquals(0, badEvents(eventFile, changes), "missing or wrong lines in events.log");
+            assertEquals(changes, delivered.get() + subscriber.missed(), "events neither delivered nor counted missed");
+            assertEquals(0, outOfOrder.get(), "events delivered out of order");
+        }
+    }
+
+    // Lines that break the log's promises: sequence numbers 1..changes without gaps, one
+    // booking per appointment, and every cancellation after that appointment's booking.
+    private static int badEvents(String eventFile, int changes) throws IOException {
+        List<String> lines = Files.readAllLines(Path.of(eventFile));
+        int bad = Math.abs(lines.size() - changes);
+        Set<Integer> bookedIds = new HashSet<>();
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            FieldReader in = new FieldReader(line);
+            long sequence = ChangeEvent.sequenceOf(line);
+            in.nextString();
+            String type = in.nextString();
+            in.nextString();
+            int id = in.nextId();
+            boolean ok = sequence == i + 1
+                    && (type.equals(ChangeType.APPOINTMENT_BOOKED.name()) ? bookedIds.add(id)
+                            : type.equals(ChangeType.APPOINTMENT_CANCELLED.name()) && bookedIds.contains(id));
+            if (!ok) bad++;
+        }
+        return bad;
+    }
+
+    // Brute-force pairwise check, independent of the schedule index.
+    static int countOverlaps(List<Appointment> all) {
+        int overlaps = 0;
+        for (int i = 0; i < all.size(); i++) {
+            Appointment a = all.get(i);
+            if (!a.isBooked()) continue;
+            for (int j = i + 1; j < all.size(); j++) {
+                Appointment b = all.get(j);
+                if (b.isBooked() && a.getDoctorId() == b.getDoctorId() && a.getEpochDay() == b.getEpochDay()
+                        && a.overlaps(b.getStartMinute(), b.getEndMinute())) {
+                    overlaps++;
+                }
+            }
+        }
+        return overlaps;
+    }
+}